@@ -0,0 +1,192 @@
+/**
+ * Compilation: build the "benchmarks" module (JMH annotation processing must be enabled)
+ * Execution: java -cp "out/production/SAT with Gradient Descent:out/production/benchmarks:<jmh library jars>"
+ * benchmarks.CircuitBenchmark [JMH options]
+ * Dependencies: (external) org.openjdk.jmh
+ * (internal) Engine
+ * <p>
+ * JMH benchmarks of the solver on seeded random instances.
+ */
+
+package benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@code CircuitBenchmark} class measures, on instances from <em>InstanceGenerator</em>:
+ * - parse: building a <em>ComputationGraph</em> from the text of the expressions (including simplification);
+ * - compile: flattening it into a <em>CompiledGraph</em>;
+ * - objectForward: <em>forward</em> on the uncompiled circuit of node objects;
+ * - forward and forwardBackward: <em>forward</em>, and <em>forward</em> followed by <em>backward</em>, on the compiled
+ * tape;
+ * - solve: time to solution of a <em>Solver</em> with default settings from a new random start. The number of steps it
+ * took and whether it solved the instance are reported as the secondary results "steps" and "solved".
+ * <p>
+ * Besides the time per operation, every benchmark reports the secondary result "clauses", the time per expression of
+ * the instance (i.e. ns per clause), so that instances of different sizes can be compared. The allocation rate is
+ * reported by the GC profiler, which <em>main</em> always enables.
+ * <p>
+ * The instance is chosen with the parameters kind (ksat or nested), n (number of variables), ratio (expressions per
+ * variable) and k (literals per clause for ksat, nesting depth for nested). The same seed is used for every run, so the
+ * results of two versions of the solver can be compared directly.
+ *
+ * @author Felipe Nuti
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CircuitBenchmark {
+    private static final long SEED = 20210131;
+
+    @Param({"ksat", "nested"})
+    public String kind;
+
+    @Param({"1000", "10000"})
+    public int n;
+
+    @Param({"4.2"})
+    public double ratio;
+
+    @Param({"3"})
+    public int k;
+
+    private ArrayList<String> expressions;
+    private Object graph;
+    private Object compiled;
+    private int clauses;
+    private Double[] vars;
+    private double[] x;
+    private double[] grads;
+    private Random random;
+
+    /**
+     * Counts the clauses processed, so that JMH reports the time per clause next to the time per operation.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Clauses {
+        public long clauses;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            clauses = 0;
+        }
+    }
+
+    /**
+     * Outcome of the <em>solve</em> benchmark, summed over invocations.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Outcome {
+        public long steps;
+        public long solved;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            steps = 0;
+            solved = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        expressions = Engine.instance(kind, n, ratio, k, SEED);
+        graph = Engine.parse(expressions, n);
+        compiled = Engine.compile(Engine.parse(expressions, n));
+        clauses = Engine.expressions(compiled);
+
+        Random init = new Random(SEED);
+        vars = new Double[n];
+        x = new double[n];
+        grads = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = init.nextGaussian();
+            vars[i] = x[i];
+        }
+        random = new Random(SEED);
+    }
+
+    @Benchmark
+    public Object parse(Clauses counter) {
+        counter.clauses += clauses;
+        return Engine.parse(expressions, n);
+    }
+
+    @Benchmark
+    public Object compile(Clauses counter) {
+        counter.clauses += clauses;
+        return Engine.compile(graph);
+    }
+
+    @Benchmark
+    public double objectForward(Clauses counter) {
+        counter.clauses += clauses;
+        return Engine.objectForward(graph, vars);
+    }
+
+    @Benchmark
+    public double forward(Clauses counter) {
+        counter.clauses += clauses;
+        return Engine.forward(compiled, x);
+    }
+
+    @Benchmark
+    public double[] forwardBackward(Clauses counter) {
+        counter.clauses += clauses;
+        Engine.forward(compiled, x);
+        Engine.backward(compiled, grads);
+        return grads;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Object solve(Clauses counter, Outcome outcome) {
+        counter.clauses += clauses;
+        Object solver = Engine.solver(compiled);
+        Engine.solve(solver, random);
+        outcome.steps += Engine.steps(solver);
+        if (Engine.solved(solver)) outcome.solved++;
+        return solver;
+    }
+
+    /**
+     * Runs the benchmarks of this class with the GC profiler. Any JMH command line option can be added, i.e.
+     * "forward -p kind=ksat -p n=100000" to run only the forward benchmarks on a larger instance.
+     *
+     * @param args
+     * @throws RunnerException
+     * @throws CommandLineOptionException
+     */
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions options = new CommandLineOptions(args);
+        OptionsBuilder builder = new OptionsBuilder();
+        if (options.getIncludes().isEmpty()) builder.include(CircuitBenchmark.class.getName());
+        new Runner(builder.parent(options).addProfiler(GCProfiler.class).build()).run();
+    }
+}
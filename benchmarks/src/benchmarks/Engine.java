@@ -0,0 +1,180 @@
+/**
+ * Dependencies: (external) java.lang.invoke
+ * (internal) InstanceGenerator, ComputationGraph, CompiledGraph, Solver
+ */
+
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The {@code Engine} class gives the benchmarks access to the solver. The solver classes live in the unnamed package,
+ * which classes of a named package cannot import, while JMH refuses to generate code for benchmarks in the unnamed
+ * package. Their entry points are therefore looked up by name once, as constant method handles, which the JIT inlines
+ * like direct calls. Objects of solver classes are passed around as Object.
+ *
+ * @author Felipe Nuti
+ */
+final class Engine {
+    private static final MethodHandle K_SAT;
+    private static final MethodHandle NESTED;
+    private static final MethodHandle NEW_GRAPH;
+    private static final MethodHandle COMPILE;
+    private static final MethodHandle OBJECT_FORWARD;
+    private static final MethodHandle FORWARD;
+    private static final MethodHandle BACKWARD;
+    private static final MethodHandle EXPRESSIONS;
+    private static final MethodHandle NEW_SOLVER;
+    private static final MethodHandle SOLVE;
+    private static final MethodHandle STEPS;
+    private static final MethodHandle SOLVED;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            Class<?> generator = Class.forName("InstanceGenerator");
+            Class<?> graph = Class.forName("ComputationGraph");
+            Class<?> compiled = Class.forName("CompiledGraph");
+            Class<?> solver = Class.forName("Solver");
+            MethodType instance = MethodType.methodType(ArrayList.class, int.class, double.class, int.class, long.class);
+
+            K_SAT = lookup.findStatic(generator, "kSat", instance);
+            NESTED = lookup.findStatic(generator, "nested", instance);
+            Constructor<?> newGraph = graph.getDeclaredConstructor(ArrayList.class, int.class);
+            newGraph.setAccessible(true);
+            NEW_GRAPH = lookup.unreflectConstructor(newGraph);
+            COMPILE = lookup.findVirtual(graph, "compile", MethodType.methodType(compiled));
+            OBJECT_FORWARD = lookup.findVirtual(graph, "forward", MethodType.methodType(Double.class, Double[].class));
+            FORWARD = lookup.findVirtual(compiled, "forward", MethodType.methodType(double.class, double[].class));
+            BACKWARD = lookup.findVirtual(compiled, "backward", MethodType.methodType(void.class, double[].class));
+            EXPRESSIONS = lookup.findVirtual(compiled, "expressions", MethodType.methodType(int.class));
+            Constructor<?> newSolver = solver.getDeclaredConstructor(compiled);
+            newSolver.setAccessible(true);
+            NEW_SOLVER = lookup.unreflectConstructor(newSolver);
+            SOLVE = lookup.findVirtual(solver, "solve",
+                    MethodType.methodType(double[].class, Random.class, AtomicBoolean.class));
+            Field steps = solver.getDeclaredField("steps");
+            steps.setAccessible(true);
+            STEPS = lookup.unreflectGetter(steps);
+            Field solved = solver.getDeclaredField("solved");
+            solved.setAccessible(true);
+            SOLVED = lookup.unreflectGetter(solved);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Engine() {
+    }
+
+    /**
+     * Rethrows anything thrown by a method handle, which can only be an unchecked exception or an error since none of
+     * the solver entry points declare checked exceptions.
+     *
+     * @param t
+     * @return never returns.
+     */
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) throw (RuntimeException) t;
+        if (t instanceof Error) throw (Error) t;
+        throw new IllegalStateException(t);
+    }
+
+    @SuppressWarnings("unchecked")
+    static ArrayList<String> instance(String kind, int n, double ratio, int k, long seed) {
+        try {
+            if (kind.equals("ksat")) return (ArrayList<String>) K_SAT.invokeExact(n, ratio, k, seed);
+            if (kind.equals("nested")) return (ArrayList<String>) NESTED.invokeExact(n, ratio, k, seed);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+        throw new IllegalArgumentException("Unknown instance family " + kind);
+    }
+
+    static Object parse(ArrayList<String> expressions, int n) {
+        try {
+            return NEW_GRAPH.invoke(expressions, n);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object compile(Object graph) {
+        try {
+            return COMPILE.invoke(graph);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static double objectForward(Object graph, Double[] vars) {
+        try {
+            return (double) (Double) OBJECT_FORWARD.invoke(graph, vars);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static double forward(Object compiled, double[] x) {
+        try {
+            return (double) FORWARD.invoke(compiled, x);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void backward(Object compiled, double[] out) {
+        try {
+            BACKWARD.invoke(compiled, out);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int expressions(Object compiled) {
+        try {
+            return (int) EXPRESSIONS.invoke(compiled);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object solver(Object compiled) {
+        try {
+            return NEW_SOLVER.invoke(compiled);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void solve(Object solver, Random random) {
+        try {
+            SOLVE.invoke(solver, random, (AtomicBoolean) null);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int steps(Object solver) {
+        try {
+            return (int) STEPS.invoke(solver);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static boolean solved(Object solver) {
+        try {
+            return (boolean) SOLVED.invoke(solver);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+}
@@ -0,0 +1,466 @@
+/**
+ * Compilation: javac --enable-preview --release 21 -cp coreClasses OffHeapGraph.java OffHeapSolver.java
+ * Dependencies: (external) java.lang.foreign (a preview API in JDK 21: compiled apart from the rest of the project,
+ * and run with --enable-preview), java.nio.channels.FileChannel
+ * (internal) CompiledGraph, GraphFile, DimacsLoader
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The {@code OffHeapGraph} class evaluates a circuit stored outside the Java heap, in <em>MemorySegment</em>s, so that
+ * formulas far larger than the heap can be solved without the garbage collector ever scanning or moving them. Its tape
+ * has the same layout as that of a <em>CompiledGraph</em> (op, inStart, in and roots) and its <em>forward</em>,
+ * <em>backward</em> and <em>countUnsatisfied</em> compute the same values; only the variables and their gradients
+ * (arrays of n doubles) are on the heap.
+ * <p>
+ * The segments come from one of:
+ * - <em>map</em>: a <em>GraphFile</em>, mapped read-only. The tape is read from the page cache in place, without being
+ * copied, and the file may be larger than 2 GB.
+ * - <em>load</em>: a DIMACS cnf file, read twice by <em>DimacsLoader.stream</em> (once to size the segments, once to
+ * fill them), into memory allocated off-heap. No node objects are ever created.
+ * - <em>save</em> writes the circuit of a DIMACS cnf file directly into a <em>GraphFile</em> of any size in the same
+ * way, for later runs to <em>map</em>.
+ * <p>
+ * The circuit of a DIMACS file has a VAR node for every variable, followed by a NOT node for every variable and an OR
+ * node for every clause, with repeated literals merged and tautologies dropped (see
+ * <em>DimacsLoader.normalize</em>). Empty clauses, which make the formula unsatisfiable, are left out and counted in
+ * <em>empty</em> (or, for <em>save</em>, returned).
+ * <p>
+ * The values and gradients of the nodes are always allocated off-heap. Allocated memory (unlike mapped files) counts
+ * against the limit set by -XX:MaxDirectMemorySize, which defaults to the maximum heap size: run with a small -Xmx
+ * and a large MaxDirectMemorySize. All the segments belong to one shared <em>Arena</em>, which <em>close</em> releases
+ * (unmapping the file, if any); the graph must not be used afterwards. Like a <em>CompiledGraph</em>, it evaluates in
+ * place, so it must not be used by two threads at once. Sizes are limited by the <em>GraphFile</em> format: fewer than
+ * 2^31 nodes and 2^31 inputs.
+ *
+ * @author Felipe Nuti
+ */
+public class OffHeapGraph implements Closeable {
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfDouble DOUBLE = ValueLayout.JAVA_DOUBLE.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfDouble VALUE = ValueLayout.JAVA_DOUBLE;
+    private static final ValueLayout.OfByte BYTE = ValueLayout.JAVA_BYTE;
+
+    final int n;
+    final int size;
+    final int expressions;
+    final double[] x;
+    int empty;
+
+    private final Arena arena;
+    private final MemorySegment op;
+    private final MemorySegment inStart;
+    private final MemorySegment in;
+    private final MemorySegment roots;
+    private final MemorySegment val;
+    private final MemorySegment grad;
+    private final double[] prefix;
+
+    /**
+     * Initializes an <em>OffHeapGraph</em> over a tape already in segments of <em>arena</em>, allocating its value and
+     * gradient buffers in the same arena.
+     *
+     * @param arena
+     * @param n
+     * @param op
+     * @param inStart
+     * @param in
+     * @param roots
+     * @param x       - assignment saved with the tape, or null.
+     */
+    private OffHeapGraph(Arena arena, int n, MemorySegment op, MemorySegment inStart, MemorySegment in,
+                         MemorySegment roots, double[] x) {
+        this.arena = arena;
+        this.n = n;
+        this.size = (int) op.byteSize();
+        this.expressions = (int) (roots.byteSize() / 4);
+        this.op = op;
+        this.inStart = inStart;
+        this.in = in;
+        this.roots = roots;
+        this.x = x;
+        this.val = arena.allocate(8L * size, 8);
+        this.grad = arena.allocate(8L * size, 8);
+        int arity = 0;
+        for (int i = 0; i < size; i++) {
+            arity = Math.max(arity, inStart.getAtIndex(INT, i + 1) - inStart.getAtIndex(INT, i));
+        }
+        this.prefix = new double[arity];
+    }
+
+    /**
+     * Counts the nodes and inputs of the circuit of a DIMACS file.
+     */
+    private static class Counter implements DimacsLoader.Clauses {
+        int n = -1;
+        long clauses;
+        long literals;
+        int empty;
+
+        public void start(int n, int declared) {
+            this.n = n;
+        }
+
+        public void add(int[] clause, int k) {
+            k = DimacsLoader.normalize(clause, k);
+            if (k == 0) empty++;
+            if (k <= 0) return;
+            clauses++;
+            literals += k;
+        }
+
+        long size() {
+            return 2L * n + clauses;
+        }
+
+        long edges() {
+            return 2L * n + literals;
+        }
+    }
+
+    /**
+     * Writes the tape of the circuit of a DIMACS file into segments sized by a <em>Counter</em>.
+     */
+    private static class Filler implements DimacsLoader.Clauses {
+        private final MemorySegment op, inStart, in, roots;
+        private int n, node, edge, root;
+
+        Filler(MemorySegment op, MemorySegment inStart, MemorySegment in, MemorySegment roots) {
+            this.op = op;
+            this.inStart = inStart;
+            this.in = in;
+            this.roots = roots;
+        }
+
+        public void start(int n, int declared) {
+            this.n = n;
+            for (int v = 0; v < n; v++) {
+                op.set(BYTE, v, CompiledGraph.VAR);
+                inStart.setAtIndex(INT, v, v);
+                in.setAtIndex(INT, v, v);
+                op.set(BYTE, n + v, CompiledGraph.NOT);
+                inStart.setAtIndex(INT, n + v, n + v);
+                in.setAtIndex(INT, n + v, v);
+            }
+            node = edge = 2 * n;
+        }
+
+        public void add(int[] clause, int k) {
+            k = DimacsLoader.normalize(clause, k);
+            if (k <= 0) return;
+            if (node == op.byteSize() || edge + (long) k > in.byteSize() / 4) {
+                throw new IllegalStateException("File changed while it was read");
+            }
+            op.set(BYTE, node, CompiledGraph.OR);
+            inStart.setAtIndex(INT, node, edge);
+            for (int t = 0; t < k; t++) {
+                int var = clause[t] >> 1;
+                in.setAtIndex(INT, edge++, (clause[t] & 1) == 0 ? var : n + var);
+            }
+            roots.setAtIndex(INT, root++, node++);
+        }
+
+        void finish() {
+            if (node != op.byteSize() || edge != in.byteSize() / 4) {
+                throw new IllegalStateException("File changed while it was read");
+            }
+            inStart.setAtIndex(INT, node, edge);
+        }
+    }
+
+    /**
+     * Reads the DIMACS file <em>dimacs</em> once to size its circuit.
+     *
+     * @param dimacs
+     * @return
+     * @throws IOException
+     */
+    private static Counter count(String dimacs) throws IOException {
+        Counter counter = new Counter();
+        DimacsLoader.stream(dimacs, counter);
+        if (counter.n < 0) throw new IllegalArgumentException("Missing problem line");
+        if (counter.size() >= Integer.MAX_VALUE || counter.edges() >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Formula too large: at most 2^31 nodes and inputs");
+        }
+        return counter;
+    }
+
+    /**
+     * Builds the circuit of the DIMACS cnf file <em>dimacs</em> in memory allocated off-heap.
+     *
+     * @param dimacs
+     * @return
+     * @throws IOException
+     */
+    public static OffHeapGraph load(String dimacs) throws IOException {
+        Counter counter = count(dimacs);
+        int size = (int) counter.size(), edges = (int) counter.edges();
+        Arena arena = Arena.ofShared();
+        try {
+            MemorySegment op = arena.allocate(size, 8);
+            MemorySegment inStart = arena.allocate(4L * (size + 1), 8);
+            MemorySegment in = arena.allocate(4L * edges, 8);
+            MemorySegment roots = arena.allocate(4L * counter.clauses, 8);
+            Filler filler = new Filler(op, inStart, in, roots);
+            DimacsLoader.stream(dimacs, filler);
+            filler.finish();
+            OffHeapGraph graph = new OffHeapGraph(arena, counter.n, op, inStart, in, roots, null);
+            graph.empty = counter.empty;
+            return graph;
+        } catch (RuntimeException | IOException e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the circuit of the DIMACS cnf file <em>dimacs</em> to the <em>GraphFile</em> <em>filename</em> (which is
+     * overwritten), without an assignment.
+     *
+     * @param dimacs
+     * @param filename
+     * @return the number of empty clauses of the formula, which are not written.
+     * @throws IOException
+     */
+    public static int save(String dimacs, String filename) throws IOException {
+        Counter counter = count(dimacs);
+        int n = counter.n, size = (int) counter.size(), edges = (int) counter.edges(), m = (int) counter.clauses;
+        long length = GraphFile.length(n, size, edges, m, false);
+        try (Arena arena = Arena.ofConfined();
+             FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MemorySegment file = channel.map(FileChannel.MapMode.READ_WRITE, 0, length, arena);
+            int[] header = {GraphFile.MAGIC, GraphFile.VERSION, 0, n, size, edges, m, 0};
+            for (int t = 0; t < header.length; t++) file.setAtIndex(INT, t, header[t]);
+            long offset = GraphFile.align(GraphFile.HEADER + (long) size);
+            Filler filler = new Filler(file.asSlice(GraphFile.HEADER, size), file.asSlice(offset, 4L * (size + 1)),
+                    file.asSlice(offset + 4L * (size + 1), 4L * edges),
+                    file.asSlice(offset + 4L * (size + 1 + (long) edges), 4L * m));
+            DimacsLoader.stream(dimacs, filler);
+            filler.finish();
+            file.force();
+        }
+        return counter.empty;
+    }
+
+    /**
+     * Maps the <em>GraphFile</em> <em>filename</em>. Its tape is checked as by <em>GraphFile.load</em>, and its
+     * assignment, if any, is copied to <em>x</em>.
+     *
+     * @param filename
+     * @return
+     * @throws IOException
+     */
+    public static OffHeapGraph map(String filename) throws IOException {
+        Arena arena = Arena.ofShared();
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < GraphFile.HEADER) throw new IllegalArgumentException("Not a graph file: " + filename);
+            MemorySegment file = channel.map(FileChannel.MapMode.READ_ONLY, 0, length, arena);
+            if (file.getAtIndex(INT, 0) != GraphFile.MAGIC) {
+                throw new IllegalArgumentException("Not a graph file: " + filename);
+            }
+            int version = file.getAtIndex(INT, 1);
+            if (version != GraphFile.VERSION) {
+                throw new IllegalArgumentException("Unsupported graph file version " + version);
+            }
+            boolean assignment = (file.getAtIndex(INT, 2) & GraphFile.HAS_ASSIGNMENT) != 0;
+            int n = file.getAtIndex(INT, 3), size = file.getAtIndex(INT, 4), edges = file.getAtIndex(INT, 5);
+            int m = file.getAtIndex(INT, 6);
+            if (n < 0 || size < 0 || edges < 0 || m < 0 || GraphFile.length(n, size, edges, m, assignment) != length) {
+                throw new IllegalArgumentException("Malformed graph file: sizes do not match its length");
+            }
+
+            long offset = GraphFile.align(GraphFile.HEADER + (long) size);
+            MemorySegment op = file.asSlice(GraphFile.HEADER, size);
+            MemorySegment inStart = file.asSlice(offset, 4L * (size + 1));
+            MemorySegment in = file.asSlice(offset + 4L * (size + 1), 4L * edges);
+            MemorySegment roots = file.asSlice(offset + 4L * (size + 1 + (long) edges), 4L * m);
+            check(n, op, inStart, in, roots);
+            double[] x = null;
+            if (assignment) {
+                x = new double[n];
+                long start = GraphFile.align(offset + 4L * (size + 1 + (long) edges + m));
+                MemorySegment.copy(file, DOUBLE, start, x, 0, n);
+            }
+            return new OffHeapGraph(arena, n, op, inStart, in, roots, x);
+        } catch (RuntimeException | IOException e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks that the segments mapped from a file describe a valid tape, as <em>GraphFile.check</em> does for arrays.
+     *
+     * @param n
+     * @param op
+     * @param inStart
+     * @param in
+     * @param roots
+     */
+    private static void check(int n, MemorySegment op, MemorySegment inStart, MemorySegment in, MemorySegment roots) {
+        long size = op.byteSize(), edges = in.byteSize() / 4;
+        if (inStart.getAtIndex(INT, 0) != 0 || inStart.getAtIndex(INT, size) != edges) {
+            throw new IllegalArgumentException("Malformed graph file");
+        }
+        for (long i = 0; i < size; i++) {
+            int s = inStart.getAtIndex(INT, i), e = inStart.getAtIndex(INT, i + 1);
+            if (e < s || e > edges) throw new IllegalArgumentException("Malformed inputs of node " + i);
+            byte code = op.get(BYTE, i);
+            switch (code) {
+                case CompiledGraph.VAR:
+                    if (e - s != 1 || in.getAtIndex(INT, s) < 0 || in.getAtIndex(INT, s) >= n) {
+                        throw new IllegalArgumentException("Malformed variable node " + i);
+                    }
+                    continue;
+                case CompiledGraph.NOT:
+                    if (e - s != 1) throw new IllegalArgumentException("Malformed NOT node " + i);
+                    break;
+                case CompiledGraph.AND:
+                case CompiledGraph.OR:
+                    if (e == s) throw new IllegalArgumentException("Gate without inputs at node " + i);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown opcode " + code + " at node " + i);
+            }
+            for (int k = s; k < e; k++) {
+                int a = in.getAtIndex(INT, k);
+                if (a < 0 || a >= i) throw new IllegalArgumentException("Input out of order at node " + i);
+            }
+        }
+        for (long j = 0; j < roots.byteSize() / 4; j++) {
+            int r = roots.getAtIndex(INT, j);
+            if (r < 0 || r >= size) throw new IllegalArgumentException("Root out of bounds");
+        }
+    }
+
+    /**
+     * Computes the cross-entropy cost of the circuit given real-valued inputs <em>x</em>, as
+     * <em>CompiledGraph.forward</em>.
+     *
+     * @param x
+     * @return
+     */
+    public double forward(double[] x) {
+        sweep(x, false);
+        double cost = 0.0;
+        for (int j = 0; j < expressions; j++) cost -= Math.log(val.getAtIndex(VALUE, roots.getAtIndex(INT, j)));
+        return cost;
+    }
+
+    /**
+     * Evaluates every node of the tape in order, rounding the variables if <em>round</em> is set.
+     *
+     * @param x
+     * @param round
+     */
+    private void sweep(double[] x, boolean round) {
+        for (int i = 0; i < size; i++) {
+            int s = inStart.getAtIndex(INT, i), e = inStart.getAtIndex(INT, i + 1);
+            double v;
+            switch (op.get(BYTE, i)) {
+                case CompiledGraph.VAR: {
+                    double z = x[in.getAtIndex(INT, s)];
+                    v = round ? (z > 0 ? 1.0 : 0.0) : 1 / (1 + Math.exp(-z));
+                    break;
+                }
+                case CompiledGraph.NOT:
+                    v = 1 - val.getAtIndex(VALUE, in.getAtIndex(INT, s));
+                    break;
+                case CompiledGraph.AND: {
+                    double p = 1.0;
+                    for (int k = s; k < e; k++) p *= val.getAtIndex(VALUE, in.getAtIndex(INT, k));
+                    v = p;
+                    break;
+                }
+                case CompiledGraph.OR: {
+                    double p = 1.0;
+                    for (int k = s; k < e; k++) p *= 1 - val.getAtIndex(VALUE, in.getAtIndex(INT, k));
+                    v = 1 - p;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown opcode " + op.get(BYTE, i));
+            }
+            val.setAtIndex(VALUE, i, v);
+        }
+    }
+
+    /**
+     * Computes the gradients of the cost of the last <em>forward</em> call with respect to each variable, as
+     * <em>CompiledGraph.backward</em>.
+     *
+     * @param out - array of length n which receives the gradients.
+     */
+    public void backward(double[] out) {
+        grad.fill((byte) 0);
+        Arrays.fill(out, 0, n, 0.0);
+        for (int j = 0; j < expressions; j++) {
+            int r = roots.getAtIndex(INT, j);
+            grad.setAtIndex(VALUE, r, grad.getAtIndex(VALUE, r) - 1.0 / val.getAtIndex(VALUE, r));
+        }
+
+        for (int i = size - 1; i >= 0; i--) {
+            double g = grad.getAtIndex(VALUE, i);
+            if (g == 0.0) continue;
+            int s = inStart.getAtIndex(INT, i), e = inStart.getAtIndex(INT, i + 1);
+            byte code = op.get(BYTE, i);
+            if (code == CompiledGraph.VAR) {
+                double v = val.getAtIndex(VALUE, i);
+                out[in.getAtIndex(INT, s)] += g * v * (1 - v);
+            } else if (code == CompiledGraph.NOT) {
+                int a = in.getAtIndex(INT, s);
+                grad.setAtIndex(VALUE, a, grad.getAtIndex(VALUE, a) - g);
+            } else {
+                boolean and = code == CompiledGraph.AND;
+                double p = 1.0;
+                for (int k = s; k < e; k++) {
+                    prefix[k - s] = p;
+                    double v = val.getAtIndex(VALUE, in.getAtIndex(INT, k));
+                    p *= and ? v : 1 - v;
+                }
+                double suffix = g;
+                for (int k = e - 1; k >= s; k--) {
+                    int a = in.getAtIndex(INT, k);
+                    grad.setAtIndex(VALUE, a, grad.getAtIndex(VALUE, a) + prefix[k - s] * suffix);
+                    double v = val.getAtIndex(VALUE, a);
+                    suffix *= and ? v : 1 - v;
+                }
+            }
+        }
+    }
+
+    /**
+     * Rounds every variable to a Boolean and counts the logical expressions that are false under that assignment, as
+     * <em>CompiledGraph.countUnsatisfied</em>.
+     *
+     * @param x
+     * @return
+     */
+    public int countUnsatisfied(double[] x) {
+        sweep(x, true);
+        int unsatisfied = 0;
+        for (int j = 0; j < expressions; j++) {
+            if (val.getAtIndex(VALUE, roots.getAtIndex(INT, j)) < 0.5) unsatisfied++;
+        }
+        return unsatisfied;
+    }
+
+    /**
+     * Releases all the memory of the graph, and unmaps its file if it was mapped.
+     */
+    public void close() {
+        arena.close();
+    }
+}
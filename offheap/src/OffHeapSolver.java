@@ -0,0 +1,126 @@
+/**
+ * Compilation: javac --enable-preview --release 21 -cp coreClasses OffHeapGraph.java OffHeapSolver.java
+ * Execution: java --enable-preview -cp coreClasses:offHeapClasses ComputationGraph --offheap [options]
+ * Dependencies: (external) java.util.Random
+ * (internal) OffHeapGraph, Optimizer, SGD, LearningRate, ComputationGraph
+ * <p>
+ * Gradient descent on the inputs of an <em>OffHeapGraph</em>, as <em>Solver</em> does on a <em>CompiledGraph</em>.
+ */
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * The {@code OffHeapSolver} class runs full-batch gradient descent on the real-valued inputs of an
+ * <em>OffHeapGraph</em>, with the same settings and defaults as <em>Solver</em>, and stops as soon as the rounded
+ * assignment satisfies every logical expression.
+ * <p>
+ * It keeps nothing on the heap but the variables, their gradients and the state of the <em>Optimizer</em>, so it has
+ * none of the features of <em>Solver</em> which need per-expression structures of the circuit (sampled steps,
+ * <em>WalkSAT</em>, incremental checks): every <em>checkInterval</em> steps the rounded assignment is checked with a
+ * full sweep of the circuit.
+ * <p>
+ * The outcome of the last <em>solve</em> call is left in <em>x</em>, <em>solved</em>, <em>steps</em>,
+ * <em>unsatisfied</em> and <em>loss</em>.
+ *
+ * @author Felipe Nuti
+ */
+public class OffHeapSolver {
+    final OffHeapGraph graph;
+    Optimizer optimizer;
+    LearningRate learningRate;
+    int maxSteps;
+    int checkInterval;
+    double[] start;
+
+    double[] x;
+    boolean solved;
+    int steps;
+    int unsatisfied;
+    double loss;
+
+    /**
+     * Initializes an <em>OffHeapSolver</em> on <em>graph</em> with the defaults of <em>Solver</em>.
+     *
+     * @param graph
+     */
+    OffHeapSolver(OffHeapGraph graph) {
+        this.graph = graph;
+        this.optimizer = new SGD();
+        this.learningRate = new LearningRate(0.1);
+        this.maxSteps = 4000;
+        this.checkInterval = 100;
+    }
+
+    /**
+     * Runs the --offheap option of <em>ComputationGraph.main</em>, which looks this method up at run time: solves the
+     * circuit of the <em>GraphFile</em> <em>load</em>, or of the DIMACS file <em>dimacs</em> (first written to the
+     * <em>GraphFile</em> <em>save</em> if it is not null), from the assignment of the file if it holds one, and prints
+     * the outcome. A DIMACS formula with an empty clause is reported unsatisfiable without being solved.
+     *
+     * @param dimacs
+     * @param load
+     * @param save
+     * @param maxSteps
+     * @param checkInterval
+     * @param optimizer
+     * @param learningRate
+     * @param seed
+     * @throws IOException
+     */
+    static void run(String dimacs, String load, String save, int maxSteps, int checkInterval, Optimizer optimizer,
+                    LearningRate learningRate, long seed) throws IOException {
+        int empty = load == null && save != null ? OffHeapGraph.save(dimacs, save) : 0;
+        try (OffHeapGraph graph = load != null ? OffHeapGraph.map(load)
+                : save != null ? OffHeapGraph.map(save) : OffHeapGraph.load(dimacs)) {
+            if (empty + graph.empty > 0) {
+                System.out.println("The formula has an empty clause: it is unsatisfiable");
+                return;
+            }
+            OffHeapSolver solver = new OffHeapSolver(graph);
+            solver.maxSteps = maxSteps;
+            solver.checkInterval = checkInterval;
+            solver.optimizer = optimizer;
+            solver.learningRate = learningRate;
+            solver.start = graph.x;
+            solver.solve(new Random(seed));
+            ComputationGraph.print(solver.solved, solver.steps, solver.unsatisfied, solver.loss, solver.x);
+        }
+    }
+
+    /**
+     * Runs gradient descent from <em>start</em>, or if it is null from a random starting point drawn from
+     * <em>random</em>.
+     *
+     * @param random
+     * @return the final real-valued assignment.
+     */
+    public double[] solve(Random random) {
+        int n = graph.n;
+        double[] grads = new double[n];
+        int[] all = new int[n];
+        x = new double[n];
+        for (int i = 0; i < n; i++) {
+            if (start == null) x[i] = random.nextDouble() * 0.1;
+            else x[i] = i < start.length ? start[i] : 0.0;
+            all[i] = i;
+        }
+        optimizer.reset(n);
+        learningRate.reset();
+
+        unsatisfied = graph.countUnsatisfied(x);
+        for (steps = 0; steps < maxSteps && unsatisfied > 0; steps++) {
+            if (steps % checkInterval == 0) {
+                unsatisfied = graph.countUnsatisfied(x);
+                if (unsatisfied == 0) break;
+            }
+            double cost = graph.forward(x);
+            graph.backward(grads);
+            optimizer.step(x, grads, all, n, learningRate.rate(steps, cost));
+        }
+        unsatisfied = graph.countUnsatisfied(x);
+        solved = unsatisfied == 0;
+        loss = graph.forward(x);
+        return x;
+    }
+}
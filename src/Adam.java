@@ -0,0 +1,50 @@
+/**
+ * {@code Adam} implements the Adam update rule (Kingma and Ba), with bias-corrected estimates of the first and second
+ * moments of each variable's gradient:
+ * - m := beta1 * m + (1 - beta1) * grad
+ * - v := beta2 * v + (1 - beta2) * grad^2
+ * - x := x - rate * m' / (sqrt(v') + epsilon), where m' and v' are m and v divided by (1 - beta^t)
+ * t counts the steps since <em>reset</em>, including steps in which a variable was not sampled.
+ */
+public class Adam implements Optimizer {
+    private final double beta1;
+    private final double beta2;
+    private final double epsilon;
+    private double[] m;
+    private double[] v;
+    private double power1;
+    private double power2;
+
+    /**
+     * Initializes Adam with the usual coefficients beta1 = 0.9, beta2 = 0.999 and epsilon = 1e-8.
+     */
+    Adam() {
+        this(0.9, 0.999, 1e-8);
+    }
+
+    Adam(double beta1, double beta2, double epsilon) {
+        this.beta1 = beta1;
+        this.beta2 = beta2;
+        this.epsilon = epsilon;
+    }
+
+    public void reset(int n) {
+        m = new double[n];
+        v = new double[n];
+        power1 = 1.0;
+        power2 = 1.0;
+    }
+
+    public void step(double[] x, double[] grads, int[] vars, int count, double rate) {
+        power1 *= beta1;
+        power2 *= beta2;
+        double correction1 = 1 - power1, correction2 = 1 - power2;
+        for (int t = 0; t < count; t++) {
+            int i = vars[t];
+            double g = grads[i];
+            m[i] = beta1 * m[i] + (1 - beta1) * g;
+            v[i] = beta2 * v[i] + (1 - beta2) * g * g;
+            x[i] -= rate * (m[i] / correction1) / (Math.sqrt(v[i] / correction2) + epsilon);
+        }
+    }
+}
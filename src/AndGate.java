@@ -1,16 +1,21 @@
 /**
- * {@code AndGate} represents an augmented logical AND gate, which takes as inputs Doubles a and b between 0 and 1 and
- * computes:
- * - a ^ b := a * b
+ * {@code AndGate} represents an augmented logical AND gate, which takes as inputs Doubles a_1, ..., a_k between 0 and 1
+ * (k >= 2) and computes:
+ * - a_1 ^ ... ^ a_k := a_1 * ... * a_k
  * - gradient of output w.r.t to each input:
- * - grad w.r.t a = b
- * - grad w.r.t b = a
+ * - grad w.r.t a_j = product of all inputs other than a_j
+ * <p>
+ * The gradients are computed in O(k) with prefix and suffix products, so a whole conjunction can be held by a single
+ * gate instead of a chain of k - 1 binary gates.
  */
+
+import java.util.ArrayList;
+
 public class AndGate implements ComputationNode {
     private Double output;
     private Double grad;
-    private ComputationNode a, b;
-    private ComputationNode child;
+    private ArrayList<ComputationNode> inputs;
+    private ArrayList<ComputationNode> children;
     private Integer id;
 
     /**
@@ -22,57 +27,58 @@ public class AndGate implements ComputationNode {
     AndGate(ComputationNode c, Integer id) {
         output = null;
         grad = 0.0;
-        a = c;
-        a.setChild(this);
-        b = null;
-        child = null;
+        inputs = new ArrayList<>();
+        inputs.add(c);
+        c.setChild(this);
+        children = new ArrayList<>();
         this.id = id;
         //System.out.printf("Connected gate %d (%c) to gate %d (%c)\n", c.id(), c.type(), this.id(), this.type());
     }
 
-    /**
-     * Runs <em>backward</em> on the child node.
-     */
-    private void getBackward() {
-        if (child == null) throw new NullPointerException("Child not defined");
-        child.backward();
-    }
-
     /**
      * Standard <em>ComputationNode</em> methods
      **/
 
     public Double forward() {
         if (output == null) {
-            output = a.forward() * b.forward();
+            double product = 1.0;
+            for (ComputationNode c : inputs) product *= c.forward();
+            output = product;
         }
 
         return output;
     }
 
     public void backward() {
-        getBackward();
-        a.setGrad(grad * b.forward());
-        b.setGrad(grad * a.forward()); // will later call "backward" on a and b
+        int k = inputs.size();
+        if (k < 2) throw new IllegalArgumentException("Backpropagation with undefined inputs");
+        double[] suffix = new double[k + 1];
+        suffix[k] = 1.0;
+        for (int j = k - 1; j >= 0; j--) suffix[j] = suffix[j + 1] * inputs.get(j).forward();
+
+        double prefix = 1.0;
+        for (int j = 0; j < k; j++) {
+            ComputationNode c = inputs.get(j);
+            c.setGrad(grad * prefix * suffix[j + 1]);
+            prefix *= c.forward();
+        }
     }
 
     public void addInput(ComputationNode c) {
-        if (b != null) {
-            System.out.printf("Tried to connect gate %d (%c) to gate %d but gate %d (%c) was already connected\n",
-                    c.id(), c.type(),
-                    this.id(),
-                    b.id(), b.type());
-            throw new IllegalArgumentException("Both inputs already defined");
-        }
-        b = c;
-        b.setChild(this);
+        inputs.add(c);
+        c.setChild(this);
+    }
+
+    public ComputationNode[] inputs() {
+        return inputs.toArray(new ComputationNode[0]);
     }
 
     public void setChild(ComputationNode c) {
-        if (child != null) {
-            throw new IllegalArgumentException("Child already defined");
-        }
-        child = c;
+        children.add(c);
+    }
+
+    public void removeChild(ComputationNode c) {
+        children.remove(c);
     }
 
     public void setGrad(Double d) {
@@ -83,7 +89,6 @@ public class AndGate implements ComputationNode {
     public void resetGrad() {
         grad = 0.0;
         output = null;
-        child.resetGrad();
     }
 
     public char type() {
@@ -0,0 +1,144 @@
+/**
+ * Dependencies: (internal) CompiledGraph
+ */
+
+import java.util.Random;
+
+/**
+ * The {@code ClauseSampler} class draws mini-batches of logical expressions (clauses) for stochastic gradient descent.
+ * Two strategies are supported:
+ * - UNIFORM: every expression is drawn with the same probability.
+ * - LOSS: expression j is drawn with probability proportional to its last observed cost plus a small floor, so
+ * that unsatisfied expressions are visited more often while satisfied ones are never starved completely. The cost
+ * of an expression whose value is 0 (a saturated root, even in double precision) is infinite: it is counted as CAP,
+ * so a single such expression cannot turn the total weight into infinity or NaN.
+ * <p>
+ * The weights are kept in a Fenwick tree, so drawing an expression and updating the weight of one both take
+ * O(log m) time for m expressions.
+ *
+ * @author Felipe Nuti
+ */
+public class ClauseSampler {
+    static final int UNIFORM = 0;
+    static final int LOSS = 1;
+
+    private static final double FLOOR = 1e-3;
+    private static final double CAP = -Math.log(Double.MIN_NORMAL);
+
+    private final int m;
+    private final int strategy;
+    private final double[] weight;
+    private final double[] tree;
+    private final int top;
+    private double total;
+
+    /**
+     * Initializes a <em>ClauseSampler</em> over m expressions, all with the same weight.
+     *
+     * @param m
+     * @param strategy - UNIFORM or LOSS.
+     */
+    ClauseSampler(int m, int strategy) {
+        if (m < 1) throw new IllegalArgumentException("Nothing to sample");
+        if (strategy != UNIFORM && strategy != LOSS) throw new IllegalArgumentException("Unknown strategy");
+        this.m = m;
+        this.strategy = strategy;
+        this.weight = new double[m];
+        this.tree = new double[strategy == LOSS ? m + 1 : 0];
+        this.top = Integer.highestOneBit(m);
+        if (strategy == LOSS) {
+            for (int j = 0; j < m; j++) add(j, 1.0);
+        }
+    }
+
+    /**
+     * Adds d to the weight of expression j.
+     *
+     * @param j
+     * @param d
+     */
+    private void add(int j, double d) {
+        weight[j] += d;
+        total += d;
+        for (int i = j + 1; i <= m; i += i & -i) tree[i] += d;
+    }
+
+    /**
+     * Sets the weight of expression j from its cost, capped at CAP (a NaN cost counts as CAP too). Does nothing for
+     * UNIFORM sampling.
+     *
+     * @param j
+     * @param loss
+     */
+    void update(int j, double loss) {
+        if (strategy == UNIFORM) return;
+        add(j, (loss <= CAP ? loss : CAP) + FLOOR - weight[j]);
+    }
+
+    /**
+     * Returns the cost -log(v) of an expression of value v, or CAP if v is too small (or 0).
+     *
+     * @param v
+     * @return
+     */
+    private static double cost(double v) {
+        return -Math.log(Math.max(v, Double.MIN_NORMAL));
+    }
+
+    /**
+     * Sets the weights of the first <em>count</em> expressions in <em>sample</em> from their costs, as left in
+     * <em>graph</em> by its last (sampled or full) <em>forward</em> call.
+     *
+     * @param graph
+     * @param sample
+     * @param count
+     */
+    void update(CompiledGraph graph, int[] sample, int count) {
+        if (strategy == UNIFORM) return;
+        for (int t = 0; t < count; t++) {
+            int j = sample[t];
+            update(j, cost(graph.val[graph.roots[j]]));
+        }
+    }
+
+    /**
+     * Sets the weights of all expressions from their costs, as left in <em>graph</em> by a full <em>forward</em> call.
+     *
+     * @param graph
+     */
+    void reset(CompiledGraph graph) {
+        if (strategy == UNIFORM) return;
+        for (int j = 0; j < m; j++) update(j, cost(graph.val[graph.roots[j]]));
+    }
+
+    /**
+     * Draws <em>count</em> expressions (with replacement) into <em>sample</em>.
+     *
+     * @param random
+     * @param sample
+     * @param count
+     */
+    void sample(Random random, int[] sample, int count) {
+        for (int t = 0; t < count; t++) {
+            if (strategy == UNIFORM) sample[t] = random.nextInt(m);
+            else sample[t] = find(random.nextDouble() * total);
+        }
+    }
+
+    /**
+     * Finds the expression whose weight interval contains u, by descending the Fenwick tree.
+     *
+     * @param u - a number between 0 and the total weight.
+     * @return
+     */
+    private int find(double u) {
+        int pos = 0;
+        for (int step = top; step > 0; step >>= 1) {
+            if (pos + step <= m && tree[pos + step] <= u) {
+                pos += step;
+                u -= tree[pos];
+            }
+        }
+        return Math.min(pos, m - 1);
+    }
+}
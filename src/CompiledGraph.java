@@ -0,0 +1,1233 @@
+/**
+ * Dependencies: (internal) ComputationGraph, ComputationNode
+ * <p>
+ * Flat, allocation-free evaluation engine for the circuits built by <em>ComputationGraph</em>.
+ */
+
+import java.util.Arrays;
+
+/**
+ * The {@code CompiledGraph} class stores an augmented logical circuit as a "tape": the nodes of the circuit in
+ * topological order, each described by an opcode and the tape indices of its inputs. Values and gradients of all nodes
+ * are kept in primitive arrays, so <em>forward</em> and <em>backward</em> are tight loops over the tape which allocate
+ * nothing and do not chase pointers between node objects.
+ * <p>
+ * Layout of the tape:
+ * - op[i] is the opcode of node i (VAR, NOT, AND or OR).
+ * - the inputs of node i are in[inStart[i]], ..., in[inStart[i + 1] - 1]. Every input has a smaller tape index than
+ * the node itself, so a single left-to-right sweep evaluates the whole circuit. AND and OR nodes may have any number
+ * of inputs; their gradients are computed with prefix and suffix products in time linear in the number of inputs.
+ * - a VAR node has a single entry in <em>in</em>, which is the index of the variable whose sigmoid it computes (not a
+ * tape index).
+ * - roots[j] is the tape index of the output of the jth logical expression. The cost of the circuit is the sum of
+ * -log(val[roots[j]]) over all expressions, as in <em>CostNode</em>.
+ * <p>
+ * The tape can only grow: <em>append</em> adds a node after the existing ones, <em>addRoot</em> adds an expression
+ * and <em>retract</em> removes one, by pointing its root at a node which is always true (so expression indices never
+ * change and the removed expression costs nothing). The arrays are grown geometrically and only their first
+ * <em>size</em> (or <em>m</em>) entries are meaningful, so changing the circuit costs time proportional to the change.
+ * Several <em>CompiledGraph</em>s created with the copy constructor can share a tape while each keeps its own value and
+ * gradient buffers (i.e. one per solver thread), as long as it is not changed in the meantime.
+ * <p>
+ * <em>forward</em> and <em>backward</em> also have batched versions which evaluate B assignments in one pass over the
+ * tape. Batched buffers are laid out node-major (the B values of node i are contiguous), so every opcode turns into
+ * simple loops over the batch which the JIT can vectorize.
+ * <p>
+ * Finally, <em>forward</em> and <em>backward</em> can be restricted to a sample of the expressions. They then only
+ * visit the cones of the sampled roots (the nodes each sampled expression depends on), listed once by
+ * <em>buildCones</em>, so a step costs time proportional to the size of the sample rather than of the whole circuit.
+ * <p>
+ * Conversely, when only a few variables changed since the last evaluation (local search, coordinate descent, sparse
+ * updates), <em>forwardIncremental</em> re-evaluates only the nodes that depend on them, listed per variable by
+ * <em>buildFanout</em>, and updates the cost by the change of the affected roots. Its cost is proportional to the number
+ * of occurrences of the changed variables rather than to the size of the formula.
+ * <p>
+ * If <em>single</em> is set, the full <em>forward</em> and <em>backward</em> sweeps keep the values and gradients of
+ * the nodes in single precision (<em>float</em>), which halves the memory they stream through. A node keeps the smaller
+ * of its value and its complement, so a saturated sigmoid (whose value rounds to 1) and the NOT above it stay exact.
+ * The cost of each expression, and its derivative with respect to the inputs of its root, are then computed in double
+ * precision from those inputs (from x for literals), falling back to the log domain (e.g. -log(AND(a, b)) = -log(a) -
+ * log(b)) for tiny values, so a product which underflows does not make the cost infinite. Gradients too large for a
+ * <em>float</em> are clamped to its range. After such a sweep, only the entries of <em>val</em> of the roots are
+ * meaningful. The sampled and batched versions always work in double precision, and evaluate every node they read;
+ * <em>forwardIncremental</em>, which reads the values left by the previous sweep, cannot be used while <em>single</em>
+ * is set.
+ * <p>
+ * If a <em>Kernel</em> is set (see <em>KernelCompiler</em>), the full <em>forward</em> and <em>backward</em> sweeps run
+ * its straight-line code, specialized to this tape, instead of interpreting the opcodes.
+ * <p>
+ * A <em>CompiledGraph</em> can also be cut into smaller ones: <em>subgraph</em> extracts the tape of some of the
+ * expressions, whose variables are renumbered from 0; vars[k] is then the index, in the original circuit, of the kth
+ * variable of the subgraph.
+ *
+ * @author Felipe Nuti
+ */
+public class CompiledGraph {
+    static final byte VAR = 0;
+    static final byte NOT = 1;
+    static final byte AND = 2;
+    static final byte OR = 3;
+    private static final double SMALL = 1e-8;
+
+    int n;
+    int size;
+    byte[] op;
+    int[] inStart;
+    int[] in;
+    int[] roots;
+    int m;
+    int[] retracted;
+    int retractions;
+    int[] vars;
+    Kernel kernel;
+    boolean single;
+
+    double[] val;
+    double[] grad;
+    private double[] prefix;
+    private int truth;
+
+    int[] coneStart;
+    int[] cone;
+    private int[] coneMark;
+    private int[] coneStack;
+    private int coneStamp;
+    private int[] touched;
+    private int[] varStamp;
+    private int stamp;
+
+    int[] fanStart;
+    int[] fan;
+    private int[] rootCount;
+    private int[] dirty;
+    private int[] nodeStamp;
+    private int nodeMark;
+    private double cost;
+
+    private int batch;
+    private double[] batchVal;
+    private double[] batchGrad;
+    private double[] batchPrefix;
+    private double[] batchSuffix;
+
+    private float[] singleVal;
+    private float[] singleGrad;
+    private float[] singlePrefix;
+    private double[] singleX;
+
+    /**
+     * Initializes a <em>CompiledGraph</em> with n variables from an already built tape. The arrays are not copied.
+     *
+     * @param n
+     * @param op
+     * @param inStart
+     * @param in
+     * @param roots
+     */
+    CompiledGraph(int n, byte[] op, int[] inStart, int[] in, int[] roots) {
+        this(n, op.length, op, inStart, in, roots, roots.length);
+        if (inStart.length != op.length + 1) throw new IllegalArgumentException("Malformed tape");
+    }
+
+    /**
+     * Initializes an empty <em>CompiledGraph</em> with n variables and room for <em>capacity</em> nodes with
+     * <em>edges</em> inputs in all and for <em>expressions</em> roots, to be filled with <em>append</em> and
+     * <em>addRoot</em>.
+     *
+     * @param n
+     * @param capacity
+     * @param edges
+     * @param expressions
+     */
+    CompiledGraph(int n, int capacity, int edges, int expressions) {
+        this(n, 0, new byte[capacity], new int[capacity + 1], new int[edges], new int[expressions], 0);
+    }
+
+    /**
+     * Initializes a <em>CompiledGraph</em> with n variables from the first <em>size</em> nodes and <em>m</em> roots of
+     * a tape whose arrays may be longer. The arrays are not copied.
+     *
+     * @param n
+     * @param size
+     * @param op
+     * @param inStart
+     * @param in
+     * @param roots
+     * @param m
+     */
+    private CompiledGraph(int n, int size, byte[] op, int[] inStart, int[] in, int[] roots, int m) {
+        if (op.length < size || inStart.length < op.length + 1) throw new IllegalArgumentException("Malformed tape");
+        this.n = n;
+        this.size = size;
+        this.op = op;
+        this.inStart = inStart;
+        this.in = in;
+        this.roots = roots;
+        this.m = m;
+        this.retracted = new int[0];
+        this.truth = -1;
+        this.val = new double[op.length];
+        this.grad = new double[op.length];
+        int arity = 0;
+        for (int i = 0; i < size; i++) arity = Math.max(arity, inStart[i + 1] - inStart[i]);
+        this.prefix = new double[arity];
+    }
+
+    /**
+     * Initializes a <em>CompiledGraph</em> which shares the tape of <em>other</em> but has its own value and gradient
+     * buffers.
+     *
+     * @param other
+     */
+    CompiledGraph(CompiledGraph other) {
+        this(other.n, other.size, other.op, other.inStart, other.in, other.roots, other.m);
+        this.retracted = other.retracted;
+        this.retractions = other.retractions;
+        this.truth = other.truth;
+        if (truth >= 0) val[truth] = 1.0;
+        this.coneStart = other.coneStart;
+        this.cone = other.cone;
+        this.fanStart = other.fanStart;
+        this.fan = other.fan;
+        this.rootCount = other.rootCount;
+        this.vars = other.vars;
+        this.kernel = other.kernel;
+        this.single = other.single;
+    }
+
+    /**
+     * Appends a node with opcode o and inputs inputs[0], ..., inputs[k - 1] to the tape (for a VAR node, inputs[0] is
+     * its variable), growing the arrays of the tape geometrically. The kernel and the fan-outs no longer cover the
+     * tape, so they are dropped (<em>buildFanout</em> lists them again); the cones of the roots are unchanged.
+     *
+     * @param o
+     * @param inputs
+     * @param k
+     * @return the tape index of the new node.
+     */
+    int append(byte o, int[] inputs, int k) {
+        if ((o == VAR || o == NOT) && k != 1) throw new IllegalArgumentException("Malformed node " + size);
+        if (o == VAR && (inputs[0] < 0 || inputs[0] >= n)) throw new IllegalArgumentException("Malformed node " + size);
+        for (int t = 0; t < k && o != VAR; t++) {
+            if (inputs[t] < 0 || inputs[t] >= size) throw new IllegalArgumentException("Input out of order at " + size);
+        }
+        if (size == op.length) {
+            int capacity = Math.max(16, 2 * size);
+            op = Arrays.copyOf(op, capacity);
+            inStart = Arrays.copyOf(inStart, capacity + 1);
+            val = Arrays.copyOf(val, capacity);
+            grad = Arrays.copyOf(grad, capacity);
+        }
+        int e = inStart[size];
+        if (e + k > in.length) in = Arrays.copyOf(in, Math.max(e + k, 2 * in.length));
+        if (k > prefix.length) prefix = new double[Math.max(k, 2 * prefix.length)];
+        System.arraycopy(inputs, 0, in, e, k);
+        op[size] = o;
+        inStart[size + 1] = e + k;
+        kernel = null;
+        fan = null;
+        return size++;
+    }
+
+    /**
+     * Adds variables to the tape, up to $(n-1), so that VAR nodes can be appended for them.
+     *
+     * @param n - new number of variables; at least the current one.
+     */
+    void grow(int n) {
+        if (n < this.n) throw new IllegalArgumentException("Cannot remove variables");
+        if (n > this.n) fan = null;
+        this.n = n;
+    }
+
+    /**
+     * Adds an expression whose output is node i, and lists its cone if the cones were built.
+     *
+     * @param i
+     * @return the index of the new expression.
+     */
+    int addRoot(int i) {
+        if (i < 0 || i >= size) throw new IllegalArgumentException("Root out of bounds");
+        if (m == roots.length) roots = Arrays.copyOf(roots, Math.max(16, 2 * m));
+        roots[m] = i;
+        if (cone != null) appendCone(m);
+        if (fan != null) rootCount[i]++;
+        return m++;
+    }
+
+    /**
+     * Removes the jth expression: its root becomes a node without inputs, the AND of nothing, which is always true, so
+     * it no longer affects the cost or the gradients. Its cone, if the cones were built, is overwritten with that node.
+     * The other expressions keep their indices, and the nodes only the removed expression used stay on the tape. The
+     * index j is logged in <em>retracted</em>, so that structures built on the expressions (i.e. a
+     * <em>SatisfactionTracker</em>) can catch up, and <em>retractions</em> counts the expressions removed.
+     *
+     * @param j
+     */
+    void retract(int j) {
+        if (j < 0 || j >= m || roots[j] == truth) throw new IllegalArgumentException("No expression " + j);
+        if (truth < 0) {
+            truth = append(AND, new int[0], 0);
+            val[truth] = 1.0;
+        }
+        if (fan != null) {
+            rootCount[roots[j]]--;
+            rootCount[truth]++;
+        }
+        roots[j] = truth;
+        if (cone != null) Arrays.fill(cone, coneStart[j], coneStart[j + 1], truth);
+        if (retractions == retracted.length) retracted = Arrays.copyOf(retracted, Math.max(16, 2 * retractions));
+        retracted[retractions++] = j;
+    }
+
+    /**
+     * Straight-line code of the full <em>forward</em> and <em>backward</em> sweeps of one particular tape, generated by
+     * <em>KernelCompiler</em>. It keeps no state, so it can be shared by all the copies of the tape.
+     */
+    interface Kernel {
+        /**
+         * Computes <em>val</em> from <em>x</em>, as the forward sweep over the tape does.
+         *
+         * @param x
+         * @param val
+         */
+        void forward(double[] x, double[] val);
+
+        /**
+         * Propagates the gradients in <em>grad</em>, already seeded at the roots, down to the variables, accumulating
+         * them in <em>out</em>, as the backward sweep over the tape does. Gates too wide to be unrolled keep their prefix
+         * products in <em>prefix</em>, which holds at least as many entries as the widest gate has inputs.
+         *
+         * @param val
+         * @param grad
+         * @param out
+         * @param prefix
+         */
+        void backward(double[] val, double[] grad, double[] out, double[] prefix);
+    }
+
+    /**
+     * Computes the cross-entropy cost of the circuit given real-valued inputs <em>x</em>, leaving the value of every node
+     * in <em>val</em>.
+     *
+     * @param x - x[i] is the real value of the $i variable (its truth value is sigmoid(x[i])).
+     * @return <em>cost</em> - the cross-entropy loss of the circuit with <em>x</em> as input.
+     */
+    public double forward(double[] x) {
+        if (single) return forwardSingle(x);
+        if (kernel != null) kernel.forward(x, val);
+        else sweep(x, false);
+        cost = 0.0;
+        for (int j = 0; j < m; j++) cost -= Math.log(val[roots[j]]);
+        return cost;
+    }
+
+    /**
+     * Evaluates every node of the tape in order. VAR nodes take the sigmoid of their variable, or, if <em>round</em> is
+     * set, its rounded Boolean value.
+     *
+     * @param x
+     * @param round
+     */
+    private void sweep(double[] x, boolean round) {
+        for (int i = 0; i < size; i++) {
+            if (round && op[i] == VAR) val[i] = x[in[inStart[i]]] > 0 ? 1.0 : 0.0;
+            else evaluate(i, x);
+        }
+    }
+
+    /**
+     * Computes the value of node i from the values of its inputs (or, for a VAR node, from x).
+     *
+     * @param i
+     * @param x
+     */
+    private void evaluate(int i, double[] x) {
+        int s = inStart[i], e = inStart[i + 1];
+        switch (op[i]) {
+            case VAR:
+                val[i] = 1 / (1 + Math.exp(-x[in[s]]));
+                break;
+            case NOT:
+                val[i] = 1 - val[in[s]];
+                break;
+            case AND: {
+                double p = 1.0;
+                for (int k = s; k < e; k++) p *= val[in[k]];
+                val[i] = p;
+                break;
+            }
+            case OR: {
+                double p = 1.0;
+                for (int k = s; k < e; k++) p *= 1 - val[in[k]];
+                val[i] = 1 - p;
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unknown opcode " + op[i]);
+        }
+    }
+
+    /**
+     * Propagates the gradient g of the (non-VAR) node i to its inputs, using prefix and suffix products for n-ary gates.
+     *
+     * @param i
+     * @param g
+     */
+    private void propagate(int i, double g) {
+        int s = inStart[i], e = inStart[i + 1];
+        switch (op[i]) {
+            case NOT:
+                grad[in[s]] -= g;
+                break;
+            case AND: {
+                double p = 1.0;
+                for (int k = s; k < e; k++) {
+                    prefix[k - s] = p;
+                    p *= val[in[k]];
+                }
+                double suffix = g;
+                for (int k = e - 1; k >= s; k--) {
+                    grad[in[k]] += prefix[k - s] * suffix;
+                    suffix *= val[in[k]];
+                }
+                break;
+            }
+            case OR: {
+                double p = 1.0;
+                for (int k = s; k < e; k++) {
+                    prefix[k - s] = p;
+                    p *= 1 - val[in[k]];
+                }
+                double suffix = g;
+                for (int k = e - 1; k >= s; k--) {
+                    grad[in[k]] += prefix[k - s] * suffix;
+                    suffix *= 1 - val[in[k]];
+                }
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unknown opcode " + op[i]);
+        }
+    }
+
+    /**
+     * Computes the gradients of the cost of the last <em>forward</em> call with respect to each variable, in a single
+     * reverse sweep over the tape.
+     *
+     * @param out - array of length n which receives the gradients; out[i] = derivative of the cost w.r.t x[i].
+     */
+    public void backward(double[] out) {
+        if (single) {
+            backwardSingle(out);
+            return;
+        }
+        Arrays.fill(grad, 0, size, 0.0);
+        Arrays.fill(out, 0, n, 0.0);
+        for (int j = 0; j < m; j++) grad[roots[j]] -= 1.0 / val[roots[j]];
+        if (kernel != null) {
+            kernel.backward(val, grad, out, prefix);
+            return;
+        }
+
+        for (int i = size - 1; i >= 0; i--) {
+            double g = grad[i];
+            if (g == 0.0) continue;
+            if (op[i] == VAR) out[in[inStart[i]]] += g * val[i] * (1 - val[i]);
+            else propagate(i, g);
+        }
+    }
+
+    /**
+     * Single-precision version of <em>forward</em>: evaluates every node into <em>singleVal</em>, and the cost of every
+     * expression with <em>rootCost</em>. Each node keeps the smaller of its value v and its complement 1 - v, the
+     * latter negated (see <em>value</em> and <em>complement</em>), so a NOT only flips the sign and no complement is
+     * recomputed from a rounded value. Both are kept away from 0 by Float.MIN_VALUE, so the sign always tells them
+     * apart.
+     *
+     * @param x
+     * @return
+     */
+    private double forwardSingle(double[] x) {
+        if (singleVal == null || singleVal.length < size || singlePrefix.length < prefix.length) {
+            singleVal = new float[op.length];
+            singleGrad = new float[op.length];
+            singlePrefix = new float[prefix.length];
+        }
+        if (singleX == null || singleX.length < n) singleX = new double[n];
+        System.arraycopy(x, 0, singleX, 0, n);
+        float[] v = singleVal;
+        for (int i = 0; i < size; i++) {
+            int s = inStart[i], e = inStart[i + 1];
+            switch (op[i]) {
+                case VAR: {
+                    double z = x[in[s]];
+                    float t = Math.max((float) (1 / (1 + Math.exp(Math.abs(z)))), Float.MIN_VALUE);
+                    v[i] = z > 0 ? -t : t;
+                    break;
+                }
+                case NOT:
+                    v[i] = -v[in[s]];
+                    break;
+                case AND: {
+                    float p = 1.0f;
+                    for (int k = s; k < e; k++) p *= value(v[in[k]]);
+                    v[i] = p <= 0.5f ? Math.max(p, Float.MIN_VALUE) : -complement(s, e, false);
+                    break;
+                }
+                case OR: {
+                    float p = 1.0f;
+                    for (int k = s; k < e; k++) p *= complement(v[in[k]]);
+                    v[i] = p <= 0.5f ? -Math.max(p, Float.MIN_VALUE) : complement(s, e, true);
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown opcode " + op[i]);
+            }
+        }
+        cost = 0.0;
+        for (int j = 0; j < m; j++) cost += rootCost(roots[j], x);
+        return cost;
+    }
+
+    /**
+     * Returns 1 - p1 * ... * pk, where pj is the value of the jth input in[s], ..., in[e - 1] (or its complement if
+     * <em>complement</em> is set), accumulated as (1 - p1) + p1 * (1 - p2) + ... so that no digit is lost when the
+     * product is close to 1. The result is kept away from 0 by Float.MIN_VALUE.
+     *
+     * @param s
+     * @param e
+     * @param complement
+     * @return
+     */
+    private float complement(int s, int e, boolean complement) {
+        float[] v = singleVal;
+        float p = 1.0f, q = 0.0f;
+        for (int k = s; k < e; k++) {
+            float a = v[in[k]];
+            if (complement) a = -a;
+            q += p * complement(a);
+            p *= value(a);
+        }
+        return Math.max(q, Float.MIN_VALUE);
+    }
+
+    // value(s) = s if s > 0, 1 + s otherwise, without a branch (the sign of s is as unpredictable as the formula)
+    private static float value(float s) {
+        return s + (Float.floatToRawIntBits(s) >>> 31);
+    }
+
+    private static float complement(float s) {
+        return (1 - (Float.floatToRawIntBits(s) >>> 31)) - s;
+    }
+
+    private static double logSigmoid(double z) {
+        return z > 0 ? -Math.log1p(Math.exp(-z)) : z - Math.log1p(Math.exp(z));
+    }
+
+    /**
+     * Returns the log of the value of node k, or of its complement if <em>complement</em> is set, in double precision.
+     * NOT nodes are followed to their input, and the value of a literal is computed from x rather than read back from
+     * its rounded sigmoid. If the side asked for was below the normal range of a <em>float</em> (so
+     * <em>forwardSingle</em> may have rounded it away), it is computed again from the inputs, in the log domain.
+     *
+     * @param k
+     * @param complement
+     * @param x
+     * @return
+     */
+    private double logValue(int k, boolean complement, double[] x) {
+        while (op[k] == NOT) {
+            k = in[inStart[k]];
+            complement = !complement;
+        }
+        if (op[k] == VAR) {
+            double z = x[in[inStart[k]]];
+            return logSigmoid(complement ? -z : z);
+        }
+        double s = singleVal[k];
+        if (complement == s > 0) return complement ? Math.log1p(-s) : Math.log1p(s);
+        if (Math.abs(s) >= Float.MIN_NORMAL) return Math.log(Math.abs(s));
+        boolean f = op[k] == OR;
+        if (complement == f) {
+            double l = 0.0;
+            for (int j = inStart[k]; j < inStart[k + 1]; j++) l += logValue(in[j], f, x);
+            return l;
+        }
+        return logSumExp(terms(k, f, x));
+    }
+
+    /**
+     * Returns the terms of the complement 1 - p1 * ... * pk of the product of the inputs of node k (their values if f
+     * is not set, their complements otherwise), in the log domain: t[j] = log(p1 * ... * pj * (1 - p[j + 1])).
+     *
+     * @param k
+     * @param f
+     * @param x
+     * @return
+     */
+    private double[] terms(int k, boolean f, double[] x) {
+        int a = inStart[k], b = inStart[k + 1];
+        double[] t = new double[b - a];
+        double prefix = 0.0;
+        for (int j = a; j < b; j++) {
+            t[j - a] = prefix + logValue(in[j], !f, x);
+            prefix += logValue(in[j], f, x);
+        }
+        return t;
+    }
+
+    private static double logSumExp(double[] t) {
+        double max = Double.NEGATIVE_INFINITY, sum = 0.0;
+        for (double v : t) max = Math.max(max, v);
+        for (double v : t) sum += Math.exp(v - max);
+        return max + Math.log(sum);
+    }
+
+    /**
+     * Adds sign * exp(w) times the derivative of <em>logValue(k, complement, x)</em> to the gradients: to <em>out</em>
+     * directly for a literal, to the gradient of node k (clamped to the range of a <em>float</em>) otherwise, or, if
+     * <em>logValue</em> was computed from the inputs of node k, to those inputs in turn.
+     *
+     * @param k
+     * @param complement
+     * @param sign
+     * @param w
+     * @param x
+     * @param out
+     */
+    private void seed(int k, boolean complement, double sign, double w, double[] x, double[] out) {
+        while (op[k] == NOT) {
+            k = in[inStart[k]];
+            complement = !complement;
+        }
+        if (op[k] == VAR) {
+            // d log(sigmoid(z)) / dz = sigmoid(-z), and d log(sigmoid(-z)) / dz = -sigmoid(z)
+            double z = x[in[inStart[k]]];
+            out[in[inStart[k]]] += (complement ? -sign : sign) * Math.exp(w + logSigmoid(complement ? z : -z));
+            return;
+        }
+        double s = singleVal[k];
+        if (complement == s > 0 || Math.abs(s) >= Float.MIN_NORMAL) {
+            double d = Math.exp(w - logValue(k, complement, x));
+            singleGrad[k] = clamp(singleGrad[k] + (complement ? -sign : sign) * d);
+            return;
+        }
+        boolean f = op[k] == OR;
+        int a = inStart[k], b = inStart[k + 1];
+        if (complement == f) {
+            for (int j = a; j < b; j++) seed(in[j], f, sign, w, x, out);
+            return;
+        }
+        // log(1 - p1 * ... * pk) = logSumExp(t): the jth input enters t[j] through 1 - pj, and every later term
+        // through pj
+        double[] t = terms(k, f, x);
+        double l = logSumExp(t), later = 0.0;
+        for (int j = b - 1; j >= a; j--) {
+            if (later > 0.0) seed(in[j], f, sign, w + Math.log(later), x, out);
+            seed(in[j], !f, sign, w + t[j - a] - l, x, out);
+            later += Math.exp(t[j - a] - l);
+        }
+    }
+
+    /**
+     * Computes -log of the value of root r in double precision from the single-precision values of its inputs (or, for
+     * a literal, from x). The value of an AND or OR root is first computed in double precision, which is exact enough
+     * unless it is smaller than SMALL; only then is the cost computed in the log domain, from <em>logValue</em> of its
+     * inputs. The value is left in val[r].
+     *
+     * @param r
+     * @param x
+     * @return
+     */
+    private double rootCost(int r, double[] x) {
+        int s = inStart[r], e = inStart[r + 1];
+        float[] v = singleVal;
+        double c;
+        switch (op[r]) {
+            case VAR:
+            case NOT:
+                c = -logValue(r, false, x);
+                break;
+            case AND: {
+                double p = 1.0;
+                for (int k = s; k < e; k++) p *= value(v[in[k]]);
+                val[r] = p;
+                if (p >= SMALL) return -Math.log(p);
+                c = 0.0;
+                for (int k = s; k < e; k++) c -= logValue(in[k], false, x);
+                break;
+            }
+            case OR: {
+                double p = 1.0;
+                for (int k = s; k < e; k++) p *= complement(v[in[k]]);
+                double q = p <= 0.5 ? 1.0 - p : complement(s, e, true);
+                val[r] = q;
+                if (q >= SMALL) return -Math.log(q);
+                c = -Math.log(-Math.expm1(logComplement(s, e, x)));
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unknown opcode " + op[r]);
+        }
+        val[r] = Math.exp(-c);
+        return c;
+    }
+
+    /**
+     * Returns log((1 - v[in[s]]) * ... * (1 - v[in[e - 1]])), the log of the complement of an OR node.
+     *
+     * @param s
+     * @param e
+     * @param x
+     * @return
+     */
+    private double logComplement(int s, int e, double[] x) {
+        double p = 0.0;
+        for (int k = s; k < e; k++) p += logValue(in[k], true, x);
+        return p;
+    }
+
+    private static float clamp(double g) {
+        return (float) Math.max(-Float.MAX_VALUE, Math.min(Float.MAX_VALUE, g));
+    }
+
+    /**
+     * Single-precision version of <em>backward</em>. The derivative of the cost of each expression is seeded into its
+     * root as in <em>backward</em>, unless the root is a literal or its value is smaller than SMALL: it is then seeded
+     * directly into the inputs of the root (see <em>seed</em>), differentiating the log-domain expressions of
+     * <em>rootCost</em>. The gradients are then propagated down the tape in single precision.
+     *
+     * @param out
+     */
+    private void backwardSingle(double[] out) {
+        float[] v = singleVal, g = singleGrad;
+        Arrays.fill(g, 0, size, 0.0f);
+        Arrays.fill(out, 0, n, 0.0);
+        for (int j = 0; j < m; j++) {
+            int r = roots[j];
+            int s = inStart[r], e = inStart[r + 1];
+            if (op[r] == VAR || op[r] == NOT) {
+                seed(r, false, -1.0, 0.0, singleX, out);
+                continue;
+            }
+            if (val[r] >= SMALL) {
+                g[r] -= (float) (1.0 / val[r]);
+                continue;
+            }
+            if (op[r] == AND) {
+                for (int k = s; k < e; k++) seed(in[k], false, -1.0, 0.0, singleX, out);
+                continue;
+            }
+            // d(-log(1 - P)) / d log(1 - v[k]) = P / (1 - P), with P the complement of the OR
+            double complement = logComplement(s, e, singleX);
+            double w = complement - Math.log(-Math.expm1(complement));
+            for (int k = s; k < e; k++) seed(in[k], true, 1.0, w, singleX, out);
+        }
+
+        float[] pre = singlePrefix;
+        for (int i = size - 1; i >= 0; i--) {
+            float gi = g[i];
+            if (gi == 0.0f) continue;
+            int s = inStart[i], e = inStart[i + 1];
+            switch (op[i]) {
+                case VAR:
+                    out[in[s]] += gi * value(v[i]) * complement(v[i]);
+                    break;
+                case NOT:
+                    g[in[s]] -= gi;
+                    break;
+                case AND: {
+                    float p = 1.0f;
+                    for (int k = s; k < e; k++) {
+                        pre[k - s] = p;
+                        p *= value(v[in[k]]);
+                    }
+                    float suffix = gi;
+                    for (int k = e - 1; k >= s; k--) {
+                        g[in[k]] += pre[k - s] * suffix;
+                        suffix *= value(v[in[k]]);
+                    }
+                    break;
+                }
+                case OR: {
+                    float p = 1.0f;
+                    for (int k = s; k < e; k++) {
+                        pre[k - s] = p;
+                        p *= complement(v[in[k]]);
+                    }
+                    float suffix = gi;
+                    for (int k = e - 1; k >= s; k--) {
+                        g[in[k]] += pre[k - s] * suffix;
+                        suffix *= complement(v[in[k]]);
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown opcode " + op[i]);
+            }
+        }
+    }
+
+    /**
+     * Lists, for every expression j, the tape indices of the nodes its root depends on, in increasing (topological)
+     * order: they are cone[coneStart[j]], ..., cone[coneStart[j + 1] - 1]. Does nothing if the cones were already
+     * built; the cones of the expressions added afterwards by <em>addRoot</em> are listed as they are added.
+     */
+    void buildCones() {
+        if (cone != null) return;
+        coneStart = new int[roots.length + 1];
+        cone = new int[Math.max(size, 16)];
+        for (int j = 0; j < m; j++) appendCone(j);
+    }
+
+    /**
+     * Lists the cone of expression j after those of the previous expressions, growing <em>cone</em> geometrically.
+     *
+     * @param j
+     */
+    private void appendCone(int j) {
+        if (coneMark == null || coneMark.length < size) {
+            coneMark = new int[op.length];
+            coneStack = new int[op.length];
+            coneStamp = 0;
+        }
+        if (++coneStamp == Integer.MAX_VALUE) {
+            Arrays.fill(coneMark, 0);
+            coneStamp = 1;
+        }
+        if (j + 2 > coneStart.length) coneStart = Arrays.copyOf(coneStart, Math.max(j + 2, 2 * coneStart.length));
+        int[] mark = coneMark, stack = coneStack;
+        int length = coneStart[j];
+        int top = 0;
+        stack[top++] = roots[j];
+        mark[roots[j]] = coneStamp;
+        while (top > 0) {
+            int i = stack[--top];
+            if (length == cone.length) cone = Arrays.copyOf(cone, Math.max(16, 2 * length));
+            cone[length++] = i;
+            if (op[i] == VAR) continue;
+            for (int k = inStart[i]; k < inStart[i + 1]; k++) {
+                if (mark[in[k]] != coneStamp) {
+                    mark[in[k]] = coneStamp;
+                    stack[top++] = in[k];
+                }
+            }
+        }
+        Arrays.sort(cone, coneStart[j], length);
+        coneStart[j + 1] = length;
+    }
+
+    /**
+     * Extracts the circuit of the expressions listed in <em>expressions</em> from <em>from</em> to <em>to</em> - 1, with
+     * only the nodes they depend on and their variables, renumbered in the same order. The kth root of the subgraph is
+     * the root of the kth listed expression, and its vars[k] is the original index of its kth variable.
+     * <em>buildCones</em> must have been called.
+     *
+     * @param expressions
+     * @param from
+     * @param to
+     * @return
+     */
+    CompiledGraph subgraph(int[] expressions, int from, int to) {
+        if (cone == null) throw new IllegalStateException("Cones not built");
+        int length = 0;
+        for (int t = from; t < to; t++) length += coneStart[expressions[t] + 1] - coneStart[expressions[t]];
+        int[] nodes = new int[length];
+        length = 0;
+        for (int t = from; t < to; t++) {
+            int j = expressions[t];
+            System.arraycopy(cone, coneStart[j], nodes, length, coneStart[j + 1] - coneStart[j]);
+            length += coneStart[j + 1] - coneStart[j];
+        }
+        Arrays.sort(nodes);
+        int count = 0, edges = 0, varCount = 0;
+        for (int c = 0; c < length; c++) {
+            if (count > 0 && nodes[count - 1] == nodes[c]) continue;
+            int i = nodes[count++] = nodes[c];
+            edges += inStart[i + 1] - inStart[i];
+            if (op[i] == VAR) varCount++;
+        }
+
+        byte[] subOp = new byte[count];
+        int[] subStart = new int[count + 1];
+        int[] subIn = new int[edges];
+        int[] subVars = new int[varCount];
+        int e = 0;
+        varCount = 0;
+        for (int s = 0; s < count; s++) {
+            int i = nodes[s];
+            subOp[s] = op[i];
+            subStart[s] = e;
+            if (op[i] == VAR) {
+                subVars[varCount] = in[inStart[i]];
+                subIn[e++] = varCount++;
+            } else {
+                for (int k = inStart[i]; k < inStart[i + 1]; k++) {
+                    subIn[e++] = Arrays.binarySearch(nodes, 0, count, in[k]);
+                }
+            }
+        }
+        subStart[count] = e;
+
+        int[] subRoots = new int[to - from];
+        for (int t = from; t < to; t++) {
+            subRoots[t - from] = Arrays.binarySearch(nodes, 0, count, roots[expressions[t]]);
+        }
+        CompiledGraph graph = new CompiledGraph(varCount, subOp, subStart, subIn, subRoots);
+        graph.vars = subVars;
+        graph.single = single;
+        return graph;
+    }
+
+    /**
+     * Lists, for every variable v, the tape indices of the nodes that depend on it, in increasing (topological) order:
+     * they are fan[fanStart[v]], ..., fan[fanStart[v + 1] - 1]. Also counts the expressions rooted at each node. Does
+     * nothing if the fan-outs were already built.
+     */
+    void buildFanout() {
+        if (fan != null) return;
+        int[] outStart = new int[size + 1];
+        for (int i = 0; i < size; i++) {
+            if (op[i] == VAR) continue;
+            for (int k = inStart[i]; k < inStart[i + 1]; k++) outStart[in[k] + 1]++;
+        }
+        for (int i = 0; i < size; i++) outStart[i + 1] += outStart[i];
+        int[] out = new int[outStart[size]];
+        int[] fill = Arrays.copyOf(outStart, size);
+        for (int i = 0; i < size; i++) {
+            if (op[i] == VAR) continue;
+            for (int k = inStart[i]; k < inStart[i + 1]; k++) out[fill[in[k]]++] = i;
+        }
+
+        int[] mark = new int[size];
+        int[] stack = new int[Math.max(size, 1)];
+        int[] start = new int[n + 1];
+        int[] list = new int[Math.max(size, 16)];
+        int length = 0;
+        int[] varNode = new int[n];
+        Arrays.fill(varNode, -1);
+        for (int i = 0; i < size; i++) if (op[i] == VAR) varNode[in[inStart[i]]] = i;
+
+        for (int v = 0; v < n; v++) {
+            start[v] = length;
+            if (varNode[v] < 0) continue;
+            int top = 0;
+            stack[top++] = varNode[v];
+            mark[varNode[v]] = v + 1;
+            while (top > 0) {
+                int i = stack[--top];
+                if (length == list.length) list = Arrays.copyOf(list, 2 * length);
+                list[length++] = i;
+                for (int k = outStart[i]; k < outStart[i + 1]; k++) {
+                    if (mark[out[k]] != v + 1) {
+                        mark[out[k]] = v + 1;
+                        stack[top++] = out[k];
+                    }
+                }
+            }
+            Arrays.sort(list, start[v], length);
+        }
+        start[n] = length;
+
+        rootCount = new int[op.length];
+        for (int j = 0; j < m; j++) rootCount[roots[j]]++;
+        fanStart = start;
+        fan = Arrays.copyOf(list, length);
+    }
+
+    /**
+     * Recomputes the cost of the circuit after the first <em>count</em> variables listed in <em>changed</em> were given
+     * new values in <em>x</em>, re-evaluating only the nodes that depend on them. <em>val</em> must hold the values of the
+     * last full or incremental <em>forward</em> call for the other variables, so <em>single</em> must not be set, the
+     * tape must not have changed since that call, and <em>buildFanout</em> must have been called.
+     * <p>
+     * The cost is updated by the difference between the new and old costs of the affected expressions, so rounding
+     * errors accumulate over many calls; a full <em>forward</em> call starts again from an exact sum.
+     *
+     * @param x       - x[i] is the real value of the $i variable.
+     * @param changed - indices of the variables whose value changed (repetitions are allowed).
+     * @param count
+     * @return the cross-entropy loss of the circuit with <em>x</em> as input.
+     */
+    public double forwardIncremental(double[] x, int[] changed, int count) {
+        if (fan == null) throw new IllegalStateException("Fan-outs not built");
+        if (single) throw new IllegalStateException("Incremental evaluation needs double-precision values");
+        if (nodeStamp == null || nodeStamp.length < size) {
+            nodeStamp = new int[op.length];
+            dirty = new int[op.length];
+            nodeMark = 0;
+        }
+        if (++nodeMark == Integer.MAX_VALUE) {
+            Arrays.fill(nodeStamp, 0);
+            nodeMark = 1;
+        }
+
+        int length = 0;
+        for (int t = 0; t < count; t++) {
+            int v = changed[t];
+            for (int f = fanStart[v]; f < fanStart[v + 1]; f++) {
+                int i = fan[f];
+                if (nodeStamp[i] == nodeMark) continue;
+                nodeStamp[i] = nodeMark;
+                dirty[length++] = i;
+            }
+        }
+        if (count > 1) Arrays.sort(dirty, 0, length);
+
+        for (int d = 0; d < length; d++) {
+            int i = dirty[d];
+            if (rootCount[i] == 0) {
+                evaluate(i, x);
+                continue;
+            }
+            double old = val[i];
+            evaluate(i, x);
+            cost += rootCount[i] * (Math.log(old) - Math.log(val[i]));
+        }
+        return cost;
+    }
+
+    /**
+     * Computes the cross-entropy cost of the first <em>count</em> expressions listed in <em>sample</em>, visiting only
+     * their cones. Every node of those cones is evaluated in double precision, so this does not depend on the values
+     * left by previous sweeps, even single-precision ones. <em>buildCones</em> must have been called.
+     *
+     * @param x      - x[i] is the real value of the $i variable.
+     * @param sample - indices of the sampled expressions (repetitions are allowed).
+     * @param count
+     * @return the sum of the costs of the sampled expressions.
+     */
+    public double forward(double[] x, int[] sample, int count) {
+        if (cone == null) throw new IllegalStateException("Cones not built");
+        double cost = 0.0;
+        for (int t = 0; t < count; t++) {
+            int j = sample[t];
+            for (int c = coneStart[j]; c < coneStart[j + 1]; c++) evaluate(cone[c], x);
+            cost -= Math.log(val[roots[j]]);
+        }
+        return cost;
+    }
+
+    /**
+     * Computes the gradients of the cost of the sampled expressions of the last sampled <em>forward</em> call, visiting
+     * only their cones. Only the entries of <em>out</em> of the variables those expressions depend on are written (they
+     * are reset to 0 before being accumulated); these variables are listed in the first returned-count entries of
+     * <em>touched()</em>.
+     *
+     * @param out    - array of length n which receives the gradients of the touched variables.
+     * @param sample
+     * @param count
+     * @return the number of variables touched.
+     */
+    public int backward(double[] out, int[] sample, int count) {
+        if (cone == null) throw new IllegalStateException("Cones not built");
+        if (touched == null || touched.length < n) {
+            touched = new int[n];
+            varStamp = new int[n];
+            stamp = 0;
+        }
+        if (++stamp == Integer.MAX_VALUE) {
+            Arrays.fill(varStamp, 0);
+            stamp = 1;
+        }
+        int touchedCount = 0;
+
+        for (int t = 0; t < count; t++) {
+            int j = sample[t];
+            int first = coneStart[j], last = coneStart[j + 1] - 1;
+            for (int c = first; c <= last; c++) grad[cone[c]] = 0.0;
+            grad[roots[j]] = -1.0 / val[roots[j]];
+
+            for (int c = last; c >= first; c--) {
+                int i = cone[c];
+                double g = grad[i];
+                if (g == 0.0) continue;
+                if (op[i] != VAR) {
+                    propagate(i, g);
+                    continue;
+                }
+                int v = in[inStart[i]];
+                if (varStamp[v] != stamp) {
+                    varStamp[v] = stamp;
+                    touched[touchedCount++] = v;
+                    out[v] = 0.0;
+                }
+                out[v] += g * val[i] * (1 - val[i]);
+            }
+        }
+        return touchedCount;
+    }
+
+    /**
+     * Variables touched by the last sampled <em>backward</em> call (only the first entries, as many as it returned, are
+     * meaningful).
+     *
+     * @return
+     */
+    int[] touched() {
+        return touched;
+    }
+
+    /**
+     * Makes sure the batched buffers can hold <em>b</em> assignments.
+     *
+     * @param b
+     */
+    private void ensureBatch(int b) {
+        if (b < 1) throw new IllegalArgumentException("Batch size must be positive");
+        if (b == batch && batchVal.length >= size * b && batchPrefix.length >= prefix.length * b) return;
+        batch = b;
+        batchVal = new double[op.length * b];
+        batchGrad = new double[op.length * b];
+        batchPrefix = new double[prefix.length * b];
+        batchSuffix = new double[b];
+    }
+
+    /**
+     * Computes the cross-entropy cost of the circuit for <em>b</em> assignments at once.
+     *
+     * @param xs     - B x n matrix stored column-major: xs[i * b + j] is the real value of the $i variable in the jth
+     *               assignment.
+     * @param b      - number of assignments B.
+     * @param losses - array of length at least b which receives the cost of each assignment.
+     */
+    public void forward(double[] xs, int b, double[] losses) {
+        ensureBatch(b);
+        double[] v = batchVal;
+        for (int i = 0; i < size; i++) {
+            int s = inStart[i], e = inStart[i + 1];
+            int dst = i * b;
+            switch (op[i]) {
+                case VAR: {
+                    int src = in[s] * b;
+                    for (int j = 0; j < b; j++) v[dst + j] = 1 / (1 + Math.exp(-xs[src + j]));
+                    break;
+                }
+                case NOT: {
+                    int src = in[s] * b;
+                    for (int j = 0; j < b; j++) v[dst + j] = 1 - v[src + j];
+                    break;
+                }
+                case AND: {
+                    Arrays.fill(v, dst, dst + b, 1.0);
+                    for (int k = s; k < e; k++) {
+                        int src = in[k] * b;
+                        for (int j = 0; j < b; j++) v[dst + j] *= v[src + j];
+                    }
+                    break;
+                }
+                case OR: {
+                    Arrays.fill(v, dst, dst + b, 1.0);
+                    for (int k = s; k < e; k++) {
+                        int src = in[k] * b;
+                        for (int j = 0; j < b; j++) v[dst + j] *= 1 - v[src + j];
+                    }
+                    for (int j = 0; j < b; j++) v[dst + j] = 1 - v[dst + j];
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown opcode " + op[i]);
+            }
+        }
+        Arrays.fill(losses, 0, b, 0.0);
+        for (int t = 0; t < m; t++) {
+            int src = roots[t] * b;
+            for (int j = 0; j < b; j++) losses[j] -= Math.log(v[src + j]);
+        }
+    }
+
+    /**
+     * Computes the gradients of the costs of the last batched <em>forward</em> call with respect to each variable of
+     * each assignment, in a single reverse sweep over the tape.
+     *
+     * @param out - B x n matrix stored column-major, like the input of <em>forward</em>, which receives the gradients:
+     *            out[i * b + j] = derivative of the jth cost w.r.t the $i variable of the jth assignment.
+     * @param b   - number of assignments B; must match the last batched <em>forward</em> call.
+     */
+    public void backward(double[] out, int b) {
+        if (b != batch) throw new IllegalArgumentException("Batch size does not match the last forward call");
+        double[] v = batchVal, g = batchGrad, pre = batchPrefix, suf = batchSuffix;
+        Arrays.fill(g, 0, size * b, 0.0);
+        Arrays.fill(out, 0, n * b, 0.0);
+        for (int t = 0; t < m; t++) {
+            int src = roots[t] * b;
+            for (int j = 0; j < b; j++) g[src + j] -= 1.0 / v[src + j];
+        }
+
+        for (int i = size - 1; i >= 0; i--) {
+            int s = inStart[i], e = inStart[i + 1];
+            int cur = i * b;
+            switch (op[i]) {
+                case VAR: {
+                    int dst = in[s] * b;
+                    for (int j = 0; j < b; j++) out[dst + j] += g[cur + j] * v[cur + j] * (1 - v[cur + j]);
+                    break;
+                }
+                case NOT: {
+                    int dst = in[s] * b;
+                    for (int j = 0; j < b; j++) g[dst + j] -= g[cur + j];
+                    break;
+                }
+                case AND: {
+                    Arrays.fill(pre, 0, b, 1.0);
+                    for (int k = s + 1; k < e; k++) {
+                        int p = (k - s) * b, src = in[k - 1] * b;
+                        for (int j = 0; j < b; j++) pre[p + j] = pre[p - b + j] * v[src + j];
+                    }
+                    System.arraycopy(g, cur, suf, 0, b);
+                    for (int k = e - 1; k >= s; k--) {
+                        int p = (k - s) * b, dst = in[k] * b;
+                        for (int j = 0; j < b; j++) {
+                            g[dst + j] += pre[p + j] * suf[j];
+                            suf[j] *= v[dst + j];
+                        }
+                    }
+                    break;
+                }
+                case OR: {
+                    Arrays.fill(pre, 0, b, 1.0);
+                    for (int k = s + 1; k < e; k++) {
+                        int p = (k - s) * b, src = in[k - 1] * b;
+                        for (int j = 0; j < b; j++) pre[p + j] = pre[p - b + j] * (1 - v[src + j]);
+                    }
+                    System.arraycopy(g, cur, suf, 0, b);
+                    for (int k = e - 1; k >= s; k--) {
+                        int p = (k - s) * b, dst = in[k] * b;
+                        for (int j = 0; j < b; j++) {
+                            g[dst + j] += pre[p + j] * suf[j];
+                            suf[j] *= 1 - v[dst + j];
+                        }
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown opcode " + op[i]);
+            }
+        }
+    }
+
+    /**
+     * Rounds every variable to a Boolean (x[i] > 0, i.e. sigmoid(x[i]) > 0.5) and counts the logical expressions that
+     * are false under that assignment. With inputs in {0, 1} every gate computes its exact Boolean value, so this reuses
+     * the <em>forward</em> sweep; it overwrites <em>val</em>.
+     *
+     * @param x
+     * @return the number of unsatisfied expressions; 0 means x encodes a satisfying assignment.
+     */
+    public int countUnsatisfied(double[] x) {
+        sweep(x, true);
+        int unsatisfied = 0;
+        for (int j = 0; j < m; j++) if (val[roots[j]] < 0.5) unsatisfied++;
+        return unsatisfied;
+    }
+
+    /**
+     * Returns the number of logical expressions (cost roots) of the circuit.
+     *
+     * @return
+     */
+    public int expressions() {
+        return m;
+    }
+}
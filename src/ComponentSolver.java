@@ -0,0 +1,166 @@
+/**
+ * Dependencies: (external) java.util.concurrent
+ * (internal) CompiledGraph, Solver
+ */
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * The {@code ComponentSolver} class splits a circuit into its connected components (groups of expressions which share
+ * no variable with the rest of the circuit, directly or through other expressions) and solves them independently, on
+ * all available cores. Each component is a <em>CompiledGraph.subgraph</em> with its own <em>Solver</em>, which stops as
+ * soon as its own expressions are satisfied, so small components stop consuming cycles instead of going through every
+ * step of the whole circuit.
+ * <p>
+ * Components are found with a union-find over the variables: the variables of every expression are merged into one
+ * set. They are solved from the largest to the smallest, and component k (in that order) starts from a random point
+ * drawn from a generator seeded with seed + k, so runs are reproducible.
+ * <p>
+ * The solver of each component is created by a factory from its subgraph, as in <em>ParallelSolver</em>. The outcome
+ * of <em>solve</em> is left in <em>x</em> (assignment of all the variables of the circuit; those which occur in no
+ * expression are left at 0), <em>solved</em> (every component was solved), <em>steps</em> (the largest number of
+ * steps taken by a component), <em>unsatisfied</em> and <em>loss</em> (sums over the components).
+ *
+ * @author Felipe Nuti
+ */
+public class ComponentSolver {
+    private final CompiledGraph graph;
+    private final Function<CompiledGraph, Solver> factory;
+    private final int threads;
+    private final long seed;
+
+    final int components;
+    private final int[] order;
+    private final int[] start;
+
+    double[] x;
+    boolean solved;
+    int steps;
+    int unsatisfied;
+    double loss;
+
+    /**
+     * Initializes a <em>ComponentSolver</em> on at most as many threads as there are available processors.
+     *
+     * @param graph
+     * @param factory
+     * @param seed
+     */
+    ComponentSolver(CompiledGraph graph, Function<CompiledGraph, Solver> factory, long seed) {
+        this(graph, factory, Runtime.getRuntime().availableProcessors(), seed);
+    }
+
+    ComponentSolver(CompiledGraph graph, Function<CompiledGraph, Solver> factory, int threads, long seed) {
+        if (threads < 1) throw new IllegalArgumentException("Need at least one thread");
+        this.graph = graph;
+        this.factory = factory;
+        this.threads = threads;
+        this.seed = seed;
+
+        graph.buildCones();
+        int m = graph.expressions();
+        int[] parent = new int[graph.n];
+        for (int v = 0; v < graph.n; v++) parent[v] = v;
+        int[] first = new int[m];
+        for (int j = 0; j < m; j++) {
+            first[j] = -1;
+            for (int c = graph.coneStart[j]; c < graph.coneStart[j + 1]; c++) {
+                int i = graph.cone[c];
+                if (graph.op[i] != CompiledGraph.VAR) continue;
+                int v = find(parent, graph.in[graph.inStart[i]]);
+                if (first[j] < 0) first[j] = v;
+                else if (v != first[j]) parent[v] = first[j];
+            }
+        }
+
+        int[] id = new int[graph.n];
+        Arrays.fill(id, -1);
+        int count = 0;
+        int[] size = new int[m + 1];
+        int[] component = new int[m];
+        for (int j = 0; j < m; j++) {
+            int root = first[j] < 0 ? -1 : find(parent, first[j]);
+            if (root < 0) component[j] = count++;
+            else if (id[root] < 0) component[j] = id[root] = count++;
+            else component[j] = id[root];
+            size[component[j]] += graph.coneStart[j + 1] - graph.coneStart[j];
+        }
+
+        Integer[] bySize = new Integer[count];
+        for (int k = 0; k < count; k++) bySize[k] = k;
+        Arrays.sort(bySize, (a, b) -> Integer.compare(size[b], size[a]));
+        int[] rank = new int[count];
+        for (int k = 0; k < count; k++) rank[bySize[k]] = k;
+
+        this.components = count;
+        this.start = new int[count + 1];
+        for (int j = 0; j < m; j++) start[rank[component[j]] + 1]++;
+        for (int k = 0; k < count; k++) start[k + 1] += start[k];
+        this.order = new int[m];
+        int[] fill = Arrays.copyOf(start, count);
+        for (int j = 0; j < m; j++) order[fill[rank[component[j]]]++] = j;
+    }
+
+    /**
+     * Returns the representative of the set of variable v, halving the path to it on the way.
+     *
+     * @param parent
+     * @param v
+     * @return
+     */
+    private static int find(int[] parent, int v) {
+        while (parent[v] != v) {
+            parent[v] = parent[parent[v]];
+            v = parent[v];
+        }
+        return v;
+    }
+
+    /**
+     * Solves every component and combines their assignments.
+     *
+     * @throws InterruptedException
+     */
+    public void solve() throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, components)));
+        Future<?>[] results = new Future<?>[components];
+        CompiledGraph[] parts = new CompiledGraph[components];
+        Solver[] solvers = new Solver[components];
+        for (int k = 0; k < components; k++) {
+            int c = k;
+            results[k] = pool.submit(() -> {
+                parts[c] = graph.subgraph(order, start[c], start[c + 1]);
+                solvers[c] = factory.apply(parts[c]);
+                solvers[c].solve(new Random(seed + c), null);
+            });
+        }
+
+        try {
+            for (Future<?> result : results) result.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Component failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        x = new double[graph.n];
+        solved = true;
+        steps = unsatisfied = 0;
+        loss = 0.0;
+        for (int k = 0; k < components; k++) {
+            Solver solver = solvers[k];
+            int[] vars = parts[k].vars;
+            for (int i = 0; i < vars.length; i++) x[vars[i]] = solver.x[i];
+            solved &= solver.solved;
+            steps = Math.max(steps, solver.steps);
+            unsatisfied += solver.unsatisfied;
+            loss += solver.loss;
+        }
+    }
+}
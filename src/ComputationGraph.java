@@ -1,17 +1,32 @@
 /**
  * Compilation: javac ComputationGraph.java
- * Execution: java ComputationGraph < inputFile
- * Dependencies: (external) java.util.ArrayList, java.util.Scanner, java.util.Stack
- * (internal) ComputationNode, InputNode, SigmoidGate, AndGate, OrGate, NotGate, CostNode
- * Data files: testInput, testInput2, parsedCNF
+ * Execution: java ComputationGraph [options] < inputFile
+ * java ComputationGraph --dimacs cnfFile [options]
+ * java ComputationGraph --load graphFile [options]
+ * Dependencies: (external) java.util.ArrayList, java.util.ArrayDeque, java.util.HashMap, java.util.IdentityHashMap,
+ * java.util.Scanner, java.util.function.Function, java.util.stream.IntStream
+ * (internal) ComputationNode, ExpressionParser, InputNode, SigmoidGate, AndGate, OrGate, NotGate, CostNode,
+ * CompiledGraph, DimacsLoader, GraphFile, GateKey, Simplifier, Preprocessor, Solver, ParallelSolver, ComponentSolver,
+ * PartitionedGraph, ClauseSampler, Optimizer, SGD, Adam, RMSProp, LearningRate, SatisfactionTracker, WalkSAT,
+ * SolverListener, Telemetry, SolverSampleEvent
+ * Data files: testInput, testInput2, parsedCNF, cnfSatBenchmark
  * <p>
  * Stochastic SAT solver that builds a logical circuit from a series of logical expressions, and can be used
  * to approximate inputs that make all the logical expressions true.
  */
 
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Scanner;
-import java.util.Stack;
+import java.util.function.Function;
+import java.util.stream.IntStream;
 
 /**
  * The {@code ComputationGraph} class represents and augmented logical circuit which can take inputs that range from 0
@@ -28,6 +43,22 @@ import java.util.Stack;
  * in inputs and outputs the cross-entropy loss of the circuit (defined as minus the log of the output of the circuit), whereas
  * <em>backward</em> can be called **after** <em>forward</em> to obtain the gradients of this loss with respect to each
  * real-valued input.
+ * <p>
+ * Structurally identical subexpressions (i.e. ~$2, or $1 ^ ~$2 in several expressions) are built only once and shared by
+ * every expression they appear in, so the circuit is a directed acyclic graph rather than a forest. The gradient of a
+ * shared gate is the sum of the gradients propagated by each of its children. Once parsed, the expressions are
+ * simplified by a <em>Simplifier</em> (negations pushed down to the variables, nested gates flattened, tautologies
+ * dropped, etc.), which saves work on every <em>forward</em> and <em>backward</em> call.
+ * <p>
+ * After construction, <em>compile</em> can be called to flatten the circuit into a <em>CompiledGraph</em>. From then on,
+ * <em>forward</em> and <em>backward</em> are thin wrappers around the compiled tape, which evaluates the same circuit
+ * without allocating or walking the node objects.
+ * <p>
+ * The circuit can then be changed incrementally: <em>grow</em> adds variables, <em>add</em> adds an expression and
+ * <em>retract</em> removes one. <em>forward</em> picks up the changes by itself, and <em>compile</em> extends the
+ * existing tape rather than building a new one, so re-solving after a few changes (warm started from the previous
+ * assignment with <em>Solver.start</em>) costs work proportional to the change. <em>SolverServer</em> exposes this
+ * to clients as per-connection sessions.
  *
  * @author Felipe Nuti
  */
@@ -35,8 +66,24 @@ public class ComputationGraph {
     InputNode[] varNodes;
     SigmoidGate[] inputNodes;
     CostNode[] costNode;
+    ComputationNode[] order;
     Integer n;
     Integer counter;
+    CompiledGraph tape;
+    HashMap<GateKey, ComputationNode> shared;
+    int expressions;
+    int empty;
+    private double[] tapeVars;
+    private double[] tapeGrads;
+    private ComputationNode[] operands;
+    private IdentityHashMap<ComputationNode, Integer> tapeIndex;
+    private int[] tapeRoot;
+    private int tapeExpressions;
+    private int retracted;
+    private boolean stale;
+
+    private static final int PARALLEL_PARSE = 4096;
+    private static final ThreadLocal<ExpressionParser> PARSER = ThreadLocal.withInitial(ExpressionParser::new);
 
     /**
      * Computes the cross-entropy cost of the <em>ComputationGraph</em> given real-valued inputs <em>vars</em>.
@@ -46,131 +93,400 @@ public class ComputationGraph {
      * @return <em>cost</em> - the cross-entropy loss of the circuit with <em>vars</em> as input.
      */
     public Double forward(Double[] vars) {
+        if (stale) refresh();
+        if (tape != null) {
+            for (int i = 0; i < n; i++) tapeVars[i] = vars[i];
+            return tape.forward(tapeVars);
+        }
         for (int i = 0; i < n; i++) {
             InputNode c = varNodes[i];
             c.updateVar(vars[i]);
+            c.resetGrad();
         }
+        for (ComputationNode c : order) c.resetGrad();
+        for (ComputationNode c : order) c.forward();
         Double cost = 0.0;
-        for (ComputationNode c : costNode)
+        for (CostNode c : costNode) {
+            if (c == null) continue;
+            c.resetGrad();
             cost += c.forward();
+        }
         return cost;
     }
 
+    /**
+     * Recomputes the cross-entropy cost of the <em>ComputationGraph</em> after only the variables listed in the first
+     * <em>count</em> entries of <em>changed</em> were given new values in <em>vars</em> since the last <em>forward</em>
+     * call. On a compiled circuit, only the gates and expressions which depend on those variables are re-evaluated (see
+     * <em>CompiledGraph.forwardIncremental</em>); otherwise this is the same as a full <em>forward</em> call.
+     *
+     * @param vars
+     * @param changed
+     * @param count
+     * @return <em>cost</em> - the cross-entropy loss of the circuit with <em>vars</em> as input.
+     */
+    public Double forward(Double[] vars, int[] changed, int count) {
+        if (tape == null || stale) return forward(vars);
+        tape.buildFanout();
+        for (int t = 0; t < count; t++) tapeVars[changed[t]] = vars[changed[t]];
+        return tape.forwardIncremental(tapeVars, changed, count);
+    }
+
     /**
      * Computes the gradients of the cross-entropy cost of the circuit on the last <em>forward</em> call with respect to each of the
      * inputs given in that call.
+     * <p>
+     * The gradients are accumulated in a single sweep over the nodes in reverse topological order, so every node
+     * propagates its gradient exactly once and no recursion is involved.
      *
      * @return <em>grads</em>, where grads[i] = derivative of the cost with respect to vars[i], given when calling <em>forward</em>.
      */
     public Double[] backward() {
         Double[] grads = new Double[varNodes.length];
+        if (tape != null) {
+            tape.backward(tapeGrads);
+            for (int i = 0; i < n; i++) grads[i] = tapeGrads[i];
+            return grads;
+        }
+        for (CostNode c : costNode) {
+            if (c != null) c.backward();
+        }
+        for (int i = order.length - 1; i >= 0; i--) order[i].backward();
         for (int i = 0; i < varNodes.length; i++) {
             InputNode c = varNodes[i];
             grads[i] = c.resultingGrad();
         }
-        for (ComputationNode c : varNodes) {
-            c.resetGrad();
-        }
         return grads;
     }
 
     /**
-     * Does the character c represent a number?
+     * Lists the nodes of the circuit in topological order (every node appears after all of its inputs). The
+     * <em>SigmoidGate</em> of the $i variable is always at position i, and the <em>CostNode</em>s are not included.
+     * The walk uses an explicit stack, so arbitrarily deep expressions do not overflow the call stack.
+     *
+     * @return
+     */
+    ArrayList<ComputationNode> topologicalOrder() {
+        ArrayList<ComputationNode> order = new ArrayList<>();
+        IdentityHashMap<ComputationNode, Boolean> done = new IdentityHashMap<>();
+        for (SigmoidGate g : inputNodes) {
+            done.put(g, true);
+            order.add(g);
+        }
+        appendOrder(order, done, null, 0);
+        return order;
+    }
+
+    /**
+     * Appends to <em>order</em>, in topological order, the nodes which the expressions from the jth one on depend on and
+     * which are neither in <em>done</em> nor in <em>placed</em> (if it is not null).
+     *
+     * @param order
+     * @param done   - nodes already visited, mapped to whether they were appended.
+     * @param placed - nodes which were already ordered before, i.e. on the compiled tape.
+     * @param j
+     */
+    private void appendOrder(ArrayList<ComputationNode> order, IdentityHashMap<ComputationNode, Boolean> done,
+                             IdentityHashMap<ComputationNode, Integer> placed, int j) {
+        ArrayDeque<ComputationNode> stack = new ArrayDeque<>();
+        for (; j < expressions; j++) {
+            CostNode c = costNode[j];
+            if (c == null) continue;
+            stack.push(c.inputs()[0]);
+            while (!stack.isEmpty()) {
+                ComputationNode node = stack.peek();
+                Boolean finished = placed != null && placed.containsKey(node) ? Boolean.TRUE : done.get(node);
+                if (finished == null) {
+                    done.put(node, false);
+                    for (ComputationNode d : node.inputs()) {
+                        if (!done.containsKey(d) && (placed == null || !placed.containsKey(d))) stack.push(d);
+                    }
+                } else {
+                    stack.pop();
+                    if (!finished) {
+                        done.put(node, true);
+                        order.add(node);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Flattens the circuit into a <em>CompiledGraph</em> and makes <em>forward</em> and <em>backward</em> use it from
+     * then on.
+     * <p>
+     * If the circuit was already compiled and has since been changed with <em>grow</em>, <em>add</em> or
+     * <em>retract</em>, the nodes created since are appended to the same tape (see <em>CompiledGraph.append</em>),
+     * so the work done is proportional to the change. Nodes of retracted expressions stay on the tape, where they no
+     * longer affect the cost or the gradients, until more expressions have been retracted than are left; the circuit is
+     * then compiled again from scratch, into a new tape.
+     *
+     * @return the compiled tape.
+     */
+    public CompiledGraph compile() {
+        stale = false;
+        if (tapeIndex != null && retracted <= tapeExpressions - retracted) return extend();
+        ArrayList<ComputationNode> order = topologicalOrder();
+        int edges = 0;
+        for (ComputationNode node : order) edges += node.inputs().length;
+
+        tape = new CompiledGraph(n, order.size(), edges, expressions);
+        tapeIndex = new IdentityHashMap<>();
+        tapeRoot = new int[expressions];
+        tapeVars = new double[n];
+        tapeGrads = new double[n];
+        tapeExpressions = 0;
+        retracted = 0;
+        // the SigmoidGate of the $i variable is at position i
+        place(order, 0);
+        addRoots();
+        return tape;
+    }
+
+    /**
+     * Appends the nodes created since the last <em>compile</em> call to the tape: the <em>SigmoidGate</em>s of the
+     * variables added by <em>grow</em>, then the gates of the expressions added by <em>add</em> which are not already on
+     * the tape, in topological order, and then the roots of those expressions.
      *
-     * @param c
-     * @return true if c represents a number from 0 to 9; false otherwise.
+     * @return the extended tape.
      */
-    private boolean isNum(char c) {
-        //System.out.printf("isNum called at %c%n", c);
-        return (c - '0' >= 0 && c - '0' <= 9);
+    private CompiledGraph extend() {
+        ArrayList<ComputationNode> added = new ArrayList<>();
+        IdentityHashMap<ComputationNode, Boolean> done = new IdentityHashMap<>();
+        int var = tape.n;
+        for (int i = var; i < n; i++) {
+            done.put(inputNodes[i], true);
+            added.add(inputNodes[i]);
+        }
+        appendOrder(added, done, tapeIndex, tapeExpressions);
+
+        tape.grow(n);
+        if (tapeVars.length < n) {
+            tapeVars = Arrays.copyOf(tapeVars, Math.max(n, 2 * tapeVars.length));
+            tapeGrads = new double[tapeVars.length];
+        }
+        // the new variables come first, in order
+        place(added, var);
+        addRoots();
+        return tape;
     }
 
     /**
-     * When the end of a parenthesis is reached or a variable is parsed, this method finishes connecting the logical gates
-     * that were waiting for this parenthesis or variable to be parsed.
+     * Appends <em>nodes</em>, whose inputs are all on the tape or before them in the list, to the tape. The
+     * <em>SigmoidGate</em>s among them must be those of the variables from $<em>var</em> on, in order.
      *
-     * @param ops  - stack of operations left to do in the parsing
-     * @param vals - stack of values calculated during parsing
-     * @param b    - whether the method should stop when a '(' parenthesis is reached.
+     * @param nodes
+     * @param var
      */
-    private void connectRemaining(Stack<ComputationNode> ops, Stack<ComputationNode> vals, boolean b) {
-        while (!ops.isEmpty() && (b || ops.peek().type() != '(')) {
-            ComputationNode computationNode = ops.pop();
-            //System.out.printf("Connected %d (%c) to %d (%c)\n", computationNode.id(), computationNode.type(), vals.peek().id(),
-            //vals.peek().type());
-            computationNode.addInput(vals.pop());
-            vals.push(computationNode);
+    private void place(ArrayList<ComputationNode> nodes, int var) {
+        int[] ids = new int[16];
+        for (ComputationNode node : nodes) {
+            ComputationNode[] inputs = node.inputs();
+            if (inputs.length > ids.length) ids = new int[Math.max(inputs.length, 2 * ids.length)];
+            byte op;
+            switch (node.type()) {
+                case 's':
+                    op = CompiledGraph.VAR;
+                    break;
+                case '~':
+                    op = CompiledGraph.NOT;
+                    break;
+                case '^':
+                    op = CompiledGraph.AND;
+                    break;
+                case 'v':
+                    op = CompiledGraph.OR;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Cannot compile node of type " + node.type());
+            }
+            if (op == CompiledGraph.VAR) ids[0] = var++;
+            else for (int k = 0; k < inputs.length; k++) ids[k] = tapeIndex.get(inputs[k]);
+            tapeIndex.put(node, tape.append(op, ids, inputs.length));
+        }
+    }
+
+    /**
+     * Adds to the tape the roots of the expressions added since the last <em>compile</em> call, whose gates must all be
+     * on the tape. tapeRoot[j] is the index on the tape of the jth expression, or -1 if it was retracted before.
+     */
+    private void addRoots() {
+        if (tapeRoot.length < expressions) {
+            tapeRoot = Arrays.copyOf(tapeRoot, Math.max(expressions, 2 * tapeRoot.length));
+        }
+        for (int j = tapeExpressions; j < expressions; j++) {
+            tapeRoot[j] = costNode[j] == null ? -1 : tape.addRoot(tapeIndex.get(costNode[j].inputs()[0]));
         }
+        tapeExpressions = expressions;
     }
 
     /**
-     * Parses the logical expression in sString into an augmented logical circuit, and connects the output to the jth cost
-     * node of the circuit.
+     * Returns the shared node structurally identical to the finished gate <em>node</em>, i.e. with the same type and the
+     * same (shared) inputs, up to their order for AND and OR gates. If there is none, <em>node</em> becomes the shared
+     * one; otherwise <em>node</em> is detached from its inputs and discarded. This must be called when a gate is about to
+     * become the input of another node, since gates are still extended with new inputs before that.
      *
-     * @param sString
+     * @param node
+     * @return
+     */
+    ComputationNode share(ComputationNode node) {
+        char type = node.type();
+        if (type != '~' && type != '^' && type != 'v') return node;
+        ComputationNode[] inputs = node.inputs();
+        int[] ids = new int[inputs.length];
+        for (int k = 0; k < inputs.length; k++) ids[k] = inputs[k].id();
+        if (type != '~') Arrays.sort(ids);
+
+        ComputationNode existing = shared.putIfAbsent(new GateKey(type, ids), node);
+        if (existing == null) return node;
+        for (ComputationNode c : inputs) c.removeChild(node);
+        return existing;
+    }
+
+    /**
+     * Builds the gates of the expression parsed into <em>program</em> by an <em>ExpressionParser</em>, and connects its
+     * output to the jth cost node of the circuit. Every gate is shared (see <em>share</em>) as soon as it is complete.
+     *
+     * @param program
      * @param j
      */
-    private void parse(String sString, Integer j) {
-        int i = 0;
-        char[] s = sString.toCharArray();
-
-        Stack<ComputationNode> ops = new Stack<>();
-        Stack<ComputationNode> vals = new Stack<>();
-
-        //System.out.println(sString);
-
-        while (i < s.length) {
-            char c = s[i];
-            //System.out.println(c);
-            if (c == '$') {
-                StringBuffer stringBuffer = new StringBuffer();
-                c = s[++i];
-
-                while (isNum(c) && i < s.length) {
-                    //System.out.println(c);
-                    stringBuffer.append(c);
-                    if (i + 1 != s.length) c = s[++i];
-                    else i++;
-                }
+    private void link(int[] program, int j) {
+        if (operands.length < program.length) operands = new ComputationNode[program.length];
+        ComputationNode[] vals = operands;
+        int top = 0;
+        for (int entry : program) {
+            if (entry >= 0) {
+                vals[top++] = inputNodes[entry];
+                continue;
+            }
+            int k = ExpressionParser.arity(entry);
+            top -= k;
+            ComputationNode node;
+            switch (ExpressionParser.type(entry)) {
+                case ExpressionParser.NOT:
+                    node = new NotGate(counter++);
+                    node.addInput(vals[top]);
+                    break;
+                case ExpressionParser.AND:
+                    node = new AndGate(vals[top], counter++);
+                    break;
+                default:
+                    node = new OrGate(vals[top], counter++);
+            }
+            for (int t = 1; t < k; t++) node.addInput(vals[top + t]);
+            vals[top++] = share(node);
+        }
+        costNode[j] = new CostNode(share(vals[0]), counter++);
+        expressions = Math.max(expressions, j + 1);
+    }
 
-                Integer x = Integer.parseInt(stringBuffer.toString());
-                if (x >= n) throw new IllegalArgumentException("Variable name out of bounds");
-                //if (!ops.isEmpty()) System.out.printf("Type of ops.top is %c\n", ops.peek().type());
-                if (ops.size() == 0 || ops.peek().type() == '(') {
-                    //System.out.println("Start of sentence");
-                    vals.push(inputNodes[x]);
-                } else {
-                    ops.peek().addInput(inputNodes[x]);
-                    vals.push(ops.pop());
-                    connectRemaining(ops, vals, false);
-                }
+    /**
+     * Connects the clause made of the first k literals of <em>literals</em> to the jth cost node of the circuit, without
+     * going through the text format. A literal is encoded as 2 * i for $i and 2 * i + 1 for ~$i. Clauses with more than
+     * one literal become a single n-ary <em>OrGate</em>.
+     * <p>
+     * <em>sortNodes</em> must be called once all clauses have been added.
+     *
+     * @param literals
+     * @param k
+     * @param j
+     */
+    void addClause(int[] literals, int k, int j) {
+        if (k == 0) throw new IllegalArgumentException("Empty clause");
+        if (j >= costNode.length) costNode = Arrays.copyOf(costNode, Math.max(j + 1, 2 * costNode.length));
+
+        ComputationNode clause = null;
+        for (int i = 0; i < k; i++) {
+            int x = literals[i] >> 1;
+            if (x >= n) throw new IllegalArgumentException("Variable name out of bounds");
+            ComputationNode literal = inputNodes[x];
+            if ((literals[i] & 1) == 1) {
+                literal = new NotGate(counter++);
+                literal.addInput(inputNodes[x]);
+                literal = share(literal);
+            }
+            if (clause == null) clause = k == 1 ? literal : new OrGate(literal, counter++);
+            else clause.addInput(literal);
+        }
+        costNode[j] = new CostNode(share(clause), counter++);
+        expressions = Math.max(expressions, j + 1);
+    }
+
+    /**
+     * Rewrites the expressions of the circuit into a simpler equivalent circuit with a <em>Simplifier</em>.
+     * <em>sortNodes</em> must be called afterwards.
+     */
+    void simplify() {
+        new Simplifier(this).run();
+        tapeIndex = null;
+    }
+
+    /**
+     * Recomputes the topological order used by <em>forward</em> and <em>backward</em>. This must be called after
+     * expressions are added to the circuit.
+     */
+    void sortNodes() {
+        this.order = topologicalOrder().toArray(new ComputationNode[0]);
+    }
 
-                //i++;
-            } else if (c == ')') {
-                //System.out.println("Arrived at )");
-                assert (ops.pop().type() == '(');
-                //System.out.println(ops.peek().type());
-                ops.pop();
-                connectRemaining(ops, vals, false);
-                i++;
-            } else if (c == '^' || c == 'v') {
-                ComputationNode node;
-                if (c == '^') node = new AndGate(vals.pop(), counter++);
-                else node = new OrGate(vals.pop(), counter++);
-                ops.push(node);
-                i++;
-            } else if (c == '(') {
-                //System.out.println("Arrived");
-                ops.push(new Parentheses('(', counter++));
-                i++;
-            } else if (c == '~') {
-                ops.push(new NotGate(counter++));
-                i++;
-            } else i++;
+    /**
+     * Adds variables to the circuit, up to $(n-1). They can be used by the expressions added afterwards.
+     *
+     * @param n - new number of variables; at least the current one.
+     */
+    public void grow(int n) {
+        if (n < this.n) throw new IllegalArgumentException("Cannot remove variables");
+        varNodes = Arrays.copyOf(varNodes, n);
+        inputNodes = Arrays.copyOf(inputNodes, n);
+        for (int i = this.n; i < n; i++) {
+            varNodes[i] = new InputNode(0.0, counter);
+            inputNodes[i] = new SigmoidGate(varNodes[i], counter++);
         }
-        connectRemaining(ops, vals, false);
-        costNode[j] = new CostNode(vals.pop(), counter++);
-        assert (vals.size() == 0 && ops.size() == 0);
+        this.n = n;
+        stale = true;
+    }
+
+    /**
+     * Adds the logical expression <em>s</em> (in the format of the constructor) to the circuit. Its subexpressions are
+     * shared with the existing ones, but unlike the expressions given to the constructor it is not simplified.
+     *
+     * @param s
+     * @return the index of the new expression, i.e. to <em>retract</em> it later.
+     */
+    public int add(String s) {
+        int[] program = PARSER.get().parse(s, n);
+        int j = expressions;
+        if (j == costNode.length) costNode = Arrays.copyOf(costNode, Math.max(16, 2 * j));
+        link(program, j);
+        stale = true;
+        return j;
+    }
+
+    /**
+     * Removes the jth expression from the circuit. Its gates are kept, so adding the same expression again, or any
+     * expression sharing its subexpressions, reuses them. If it is on the compiled tape, its root there is retracted
+     * at once (see <em>CompiledGraph.retract</em>).
+     *
+     * @param j
+     */
+    public void retract(int j) {
+        if (j < 0 || j >= expressions || costNode[j] == null) throw new IllegalArgumentException("No expression " + j);
+        costNode[j].inputs()[0].removeChild(costNode[j]);
+        costNode[j] = null;
+        if (tapeIndex != null && j < tapeExpressions) tape.retract(tapeRoot[j]);
+        retracted++;
+        stale = true;
+    }
+
+    /**
+     * Brings <em>forward</em> and <em>backward</em> up to date after <em>grow</em>, <em>add</em> or <em>retract</em>:
+     * extends the compiled tape if there is one, and otherwise recomputes the topological order.
+     */
+    private void refresh() {
+        if (tape != null) compile();
+        else sortNodes();
+        stale = false;
     }
 
     /**
@@ -183,15 +499,50 @@ public class ComputationGraph {
      * - The logical AND operation is denoted by ^ (i.e. $3 ^ $5 represents 3 AND 4).
      * - The logical OR operation is denoted by v (i.e. $0 v $1 represents 3 OR 4).
      * - The logical NOT operation is denoted by ~ (i.e. ~$3 represents NOT 3).
+     * - ~ binds tighter than ^, which binds tighter than v (i.e. $0 v $1 ^ ~$2 represents $0 v ($1 ^ (~$2))).
+     * - Chains of the same operation (i.e. $1 v ~$2 v $3) are parsed into a single n-ary gate.
+     * - Repeated subexpressions, within or across expressions, are parsed into a single shared gate.
      * - For now, only these operations are supported, but they are sufficient to write any boolean function as a logicaal expression
+     * - Blank strings are skipped; any other malformed string makes the constructor throw an IllegalArgumentException
+     * giving its line and column.
      * <p>
      * Expression example:
      * $10 v ~($11 ^ ~$12)
+     * <p>
+     * The strings are parsed by <em>ExpressionParser</em>s, in parallel when there are many of them, and then linked into
+     * the circuit one after the other, so the result does not depend on the number of threads.
      *
      * @param s
      * @param n
      */
     ComputationGraph(ArrayList<String> s, int n) {
+        this(n, s.size());
+        int[][] programs = new int[s.size()][];
+        IntStream lines = IntStream.range(0, s.size());
+        if (s.size() >= PARALLEL_PARSE) lines = lines.parallel();
+        lines.forEach(i -> {
+            if (s.get(i).isBlank()) return;
+            try {
+                programs[i] = PARSER.get().parse(s.get(i), n);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(e.getMessage() + " of expression " + (i + 1), e);
+            }
+        });
+        for (int i = 0; i < s.size(); i++) {
+            if (programs[i] != null) link(programs[i], i);
+        }
+        simplify();
+        sortNodes();
+    }
+
+    /**
+     * Initializes an empty circuit with <em>n</em> variable inputs and room for <em>m</em> expressions, which can then be
+     * filled with <em>addClause</em>. This is used by <em>DimacsLoader</em> to build the circuit while streaming a file.
+     *
+     * @param n
+     * @param m
+     */
+    ComputationGraph(int n, int m) {
         this.n = n;
         this.inputNodes = new SigmoidGate[n];
         this.varNodes = new InputNode[n];
@@ -205,55 +556,374 @@ public class ComputationGraph {
             inputNodes[i] = new SigmoidGate(varNodes[i], counter++);
         }
 
-        this.costNode = new CostNode[s.size()];
-        for (int i = 0; i < s.size(); i++) {
-            if (!s.get(i).isBlank()) parse(s.get(i), i);
-            //System.out.println("Parsed successfully");
+        this.costNode = new CostNode[m];
+        this.order = new ComputationNode[0];
+        this.shared = new HashMap<>();
+        this.operands = new ComputationNode[16];
+    }
+
+    /**
+     * Returns the entries of the assignment <em>x</em> of the variables listed in <em>vars</em>.
+     *
+     * @param x
+     * @param vars
+     * @return
+     */
+    private static double[] restrict(double[] x, int[] vars) {
+        double[] sub = new double[vars.length];
+        for (int k = 0; k < vars.length; k++) sub[k] = x[vars[k]];
+        return sub;
+    }
+
+    /**
+     * Creates the <em>Optimizer</em> named by the --optimizer option of <em>main</em>.
+     *
+     * @param name
+     * @return
+     */
+    static Optimizer optimizer(String name) {
+        switch (name) {
+            case "sgd":
+                return new SGD();
+            case "momentum":
+                return new SGD(0.9, false);
+            case "nesterov":
+                return new SGD(0.9, true);
+            case "adam":
+                return new Adam();
+            case "rmsprop":
+                return new RMSProp();
+            default:
+                throw new IllegalArgumentException("Unknown optimizer " + name);
         }
     }
 
     /**
-     * Example of use of the <em>ComputationGraph</em> class for Stochastic SAT solving. Produces an ArrayList of logical
-     * expressions from System.in, passes them onto the <em>ComputationGraph</em> constructor and initializes an array of
-     * <em>vars</em> (i.e. real-number values corresponding to truth values of inputs to the circuit). Then, it uses the
-     * <em>forward</em> and <em>backward</em> methods to implement stochastic gradient descent on these variables, with the
-     * objective of maximizing the truth values of each of the logical expressions given by the user.
+     * Returns the <em>ClauseSampler</em> strategy named by the --sampling option of <em>main</em>.
      *
-     * @param args
+     * @param name
+     * @return
      */
+    private static int sampling(String name) {
+        switch (name) {
+            case "uniform":
+                return ClauseSampler.UNIFORM;
+            case "loss":
+                return ClauseSampler.LOSS;
+            default:
+                throw new IllegalArgumentException("Unknown sampling " + name);
+        }
+    }
 
-    public static void main(String[] args) {
-        Scanner sc = new Scanner(System.in);
-        int n = sc.nextInt();
-        sc.nextLine();
-        ArrayList<String> arrS = new ArrayList<>();
-        while (sc.hasNextLine()) {
-            String line = sc.nextLine();
-            if (!line.isBlank()) arrS.add(line);
+    /**
+     * Returns the <em>LearningRate</em> schedule named by the --schedule option of <em>main</em>.
+     *
+     * @param name
+     * @return
+     */
+    private static int schedule(String name) {
+        switch (name) {
+            case "constant":
+                return LearningRate.CONSTANT;
+            case "step":
+                return LearningRate.STEP;
+            case "cosine":
+                return LearningRate.COSINE;
+            case "plateau":
+                return LearningRate.PLATEAU;
+            default:
+                throw new IllegalArgumentException("Unknown schedule " + name);
         }
+    }
 
-        ComputationGraph cg = new ComputationGraph(arrS, n);
+    /**
+     * Is the --precision option of <em>main</em> <em>name</em> single precision (or double precision)?
+     *
+     * @param name
+     * @return
+     */
+    private static boolean single(String name) {
+        switch (name) {
+            case "single":
+                return true;
+            case "double":
+                return false;
+            default:
+                throw new IllegalArgumentException("Unknown precision " + name);
+        }
+    }
 
-        Double alpha = 0.1;
+    /**
+     * Example of use of the <em>ComputationGraph</em> class for Stochastic SAT solving. Produces an ArrayList of logical
+     * expressions from System.in, passes them onto the <em>ComputationGraph</em> constructor and compiles the resulting
+     * circuit. Then, it runs a <em>Solver</em>, which uses the <em>forward</em> and <em>backward</em> methods of the
+     * compiled circuit to implement stochastic gradient descent on real-valued inputs, with the objective of maximizing
+     * the truth values of each of the logical expressions given by the user. The solver stops as soon as the rounded
+     * inputs satisfy every expression, and the number of steps it took is reported.
+     * <p>
+     * Options:
+     * - --dimacs file: read the clauses from a DIMACS cnf file instead of System.in. The DIMACS variable i is the $(i-1)
+     * input of the circuit. A formula with an empty clause is reported unsatisfiable without being solved.
+     * - --preprocess: with --dimacs, simplify the formula with a <em>Preprocessor</em> (unit propagation, pure literals,
+     * subsumption) before building the circuit. The printed assignment still covers every original variable.
+     * - --load file: read the compiled circuit from a <em>GraphFile</em> instead of System.in. If the file holds an
+     * assignment, the solver is warm started from it. It cannot be used with --preprocess, which reads --dimacs.
+     * - --save file: once solved, save the compiled circuit and the assignment reached to a <em>GraphFile</em>, which
+     * later runs can --load. It cannot be used with --preprocess, since the saved circuit would not be the original one.
+     * - --offheap: keep the circuit off the heap (see <em>OffHeapGraph</em>), built directly from the --dimacs file or
+     * mapped from the --load file, and solve it with plain full-batch gradient descent (<em>OffHeapSolver</em>). With
+     * --dimacs, --save file writes the circuit (without an assignment) to a <em>GraphFile</em> of any size before solving
+     * and maps it from there. The other options which change the solver cannot be used. The off-heap classes use a
+     * preview API of JDK 21, so they are compiled apart from the rest of the project, from offheap/src with
+     * javac --enable-preview, and this option needs them on the class path and java --enable-preview.
+     * - --restarts k: run k independent restarts of gradient descent on the compiled circuit in parallel, stopping all of
+     * them as soon as one satisfies every expression.
+     * - --components: split the circuit into independent components (expressions sharing no variable) and solve them
+     * in parallel, each stopping as soon as its own expressions are satisfied (see <em>ComponentSolver</em>). The
+     * reported number of steps is that of the slowest component.
+     * - --partitions k: split the expressions into k partitions whose cost and gradients are computed in parallel (see
+     * <em>PartitionedGraph</em>), so that each restart uses several cores.
+     * - --specialize: generate and load code specialized to the compiled circuit (see <em>KernelCompiler</em>), which
+     * makes full-batch steps faster once it is compiled. Worth it for instances run for many steps; requires a JDK.
+     * The sub-tapes of --partitions are not specialized.
+     * - --precision double|single: precision of the values and gradients of the nodes in full-batch steps (see
+     * <em>CompiledGraph.single</em>; double by default). Single precision cannot be used with --specialize.
+     * - --seed s: seed of the random initializations (restart j is seeded with s + j).
+     * - --steps t: maximum number of steps of each restart (4000 by default).
+     * - --check k: round the inputs and check the expressions every k steps (100 by default).
+     * - --batch k: at each step, follow the gradient of k sampled expressions instead of all of them.
+     * - --sampling uniform|loss: how --batch samples expressions (uniformly, or weighted by their current cost).
+     * - --optimizer sgd|momentum|nesterov|adam|rmsprop: update rule of the solver (see <em>Optimizer</em>).
+     * - --lr a: initial learning rate (0.1 by default).
+     * - --schedule constant|step|cosine|plateau: learning rate schedule (see <em>LearningRate</em>).
+     * - --hybrid k: hand the rounded assignment to <em>WalkSAT</em> whenever the loss has not improved for k steps.
+     * - --flips f: maximum number of flips of each WalkSAT phase (100000 by default).
+     * - --telemetry: print a <em>Telemetry</em> sample of every restart (loss, gradient norm, satisfied expressions,
+     * throughput) every --sample steps.
+     * - --jfr: record the same samples as <em>SolverSampleEvent</em>s for JDK Flight Recorder (the JVM must be running a
+     * recording, i.e. started with -XX:StartFlightRecording).
+     * - --sample k: interval in steps between two samples (100 by default).
+     *
+     * @param args
+     */
 
-        Double[] vars = new Double[n];
+    public static void main(String[] args) throws IOException, InterruptedException {
+        ComputationGraph cg = null;
+        String dimacs = null;
+        boolean preprocess = false;
+        int restarts = 1;
+        boolean components = false;
+        String load = null, save = null;
+        int partitions = 0;
+        boolean specialize = false;
+        boolean single = false;
+        boolean offHeap = false;
+        int maxSteps = 4000;
+        int checkInterval = 100;
+        int batch = 0;
+        int sampling = ClauseSampler.UNIFORM;
+        String optimizer = "sgd";
+        double lr = 0.1;
+        int schedule = LearningRate.CONSTANT;
+        int stallSteps = 0;
+        long maxFlips = 100000;
+        boolean print = false, record = false;
+        int sampleInterval = 100;
+        long seed = System.nanoTime();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--dimacs")) dimacs = args[++i];
+            else if (args[i].equals("--preprocess")) preprocess = true;
+            else if (args[i].equals("--load")) load = args[++i];
+            else if (args[i].equals("--save")) save = args[++i];
+            else if (args[i].equals("--seed")) seed = Long.parseLong(args[++i]);
+            else if (args[i].equals("--restarts")) restarts = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--components")) components = true;
+            else if (args[i].equals("--partitions")) partitions = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--specialize")) specialize = true;
+            else if (args[i].equals("--precision")) single = single(args[++i]);
+            else if (args[i].equals("--offheap")) offHeap = true;
+            else if (args[i].equals("--steps")) maxSteps = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--check")) checkInterval = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--batch")) batch = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--sampling")) sampling = sampling(args[++i]);
+            else if (args[i].equals("--optimizer")) optimizer = args[++i];
+            else if (args[i].equals("--lr")) lr = Double.parseDouble(args[++i]);
+            else if (args[i].equals("--schedule")) schedule = schedule(args[++i]);
+            else if (args[i].equals("--hybrid")) stallSteps = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--flips")) maxFlips = Long.parseLong(args[++i]);
+            else if (args[i].equals("--telemetry")) print = true;
+            else if (args[i].equals("--jfr")) record = true;
+            else if (args[i].equals("--sample")) sampleInterval = Integer.parseInt(args[++i]);
+            else throw new IllegalArgumentException("Unknown option " + args[i]);
+        }
+        if (components && restarts > 1) throw new IllegalArgumentException("--components runs a single restart");
+        if (save != null && preprocess) throw new IllegalArgumentException("--save cannot be used with --preprocess");
+        if (load != null && preprocess) throw new IllegalArgumentException("--preprocess reads --dimacs only");
+        if (single && specialize) throw new IllegalArgumentException("--specialize runs in double precision");
+        if (offHeap && (restarts > 1 || components || partitions > 0 || batch > 0 || stallSteps > 0 || preprocess
+                || specialize || single || print || record)) {
+            throw new IllegalArgumentException("--offheap only runs plain full-batch gradient descent");
+        }
+        if (offHeap) {
+            if (load == null && dimacs == null) throw new IllegalArgumentException("--offheap reads --dimacs or --load");
+            if (load != null && save != null) throw new IllegalArgumentException("--offheap saves --dimacs only");
+            offHeap(dimacs, load, save, maxSteps, checkInterval, optimizer(optimizer), new LearningRate(lr, schedule),
+                    seed);
+            return;
+        }
 
-        for (int i = 0; i < n; i++) vars[i] = Math.random() * 0.1;
+        Preprocessor preprocessor = null;
+        GraphFile loaded = null;
+        if (load != null) {
+            loaded = GraphFile.load(load);
+        } else if (dimacs != null && preprocess) {
+            preprocessor = DimacsLoader.preprocess(dimacs);
+            if (preprocessor.unsatisfiable) {
+                System.out.println("Preprocessing found the formula unsatisfiable");
+                return;
+            }
+            cg = preprocessor.build();
+            System.out.printf("Preprocessing fixed %d variables and removed %d subsumed clauses (%d variables left)\n",
+                    preprocessor.fixed, preprocessor.subsumed, cg.n);
+        } else if (dimacs != null) {
+            cg = DimacsLoader.load(dimacs);
+            if (cg.empty > 0) {
+                System.out.println("The formula has an empty clause: it is unsatisfiable");
+                return;
+            }
+        } else {
+            Scanner sc = new Scanner(System.in);
+            int n = sc.nextInt();
+            sc.nextLine();
+            ArrayList<String> arrS = new ArrayList<>();
+            while (sc.hasNextLine()) {
+                String line = sc.nextLine();
+                if (!line.isBlank()) arrS.add(line);
+            }
+            cg = new ComputationGraph(arrS, n);
+        }
 
-        //System.out.println(cg.forward(vars));
+        CompiledGraph graph = loaded != null ? loaded.graph : cg.compile();
+        double[] warm = loaded != null ? loaded.x : null;
+        graph.single = single;
+        graph.buildCones();
+        if (specialize && !components) graph.kernel = KernelCompiler.compile(graph);
+        PartitionedGraph split = partitions > 0 ? new PartitionedGraph(graph, partitions) : null;
+        int steps = maxSteps, check = checkInterval, batchSize = batch, strategy = sampling, rateSchedule = schedule;
+        int stall = stallSteps;
+        long flips = maxFlips;
+        int interval = sampleInterval, parts = partitions;
+        SolverListener listener = null;
+        if (print && record) listener = t -> {
+            System.out.println(t);
+            SolverSampleEvent.LISTENER.sample(t);
+        };
+        else if (print) listener = System.out::println;
+        else if (record) listener = SolverSampleEvent.LISTENER;
+        SolverListener observer = listener;
+        String update = optimizer;
+        double rate = lr;
+        boolean specialized = specialize;
+        Function<CompiledGraph, Solver> factory = g -> {
+            // restarts copy the tape, and its kernel, of the whole circuit; components are specialized on their own
+            if (specialized && g.kernel == null) g.kernel = KernelCompiler.compile(g);
+            Solver s = new Solver(g);
+            s.maxSteps = steps;
+            s.checkInterval = check;
+            s.batchSize = batchSize;
+            s.sampling = strategy;
+            s.optimizer = optimizer(update);
+            s.learningRate = new LearningRate(rate, rateSchedule);
+            s.stallSteps = stall;
+            s.maxFlips = flips;
+            s.listener = observer;
+            s.sampleInterval = interval;
+            if (warm != null) s.start = g.vars == null ? warm : restrict(warm, g.vars);
+            if (split == null) return s;
+            // restarts share the tape of the whole circuit, components each have their own
+            s.partitions = g.op == graph.op ? new PartitionedGraph(split) : new PartitionedGraph(g, parts);
+            return s;
+        };
 
-        int t = 4000;
+        boolean solved;
+        int taken, unsatisfied;
+        double loss;
+        double[] x;
+        if (components) {
+            ComponentSolver solver = new ComponentSolver(graph, factory, seed);
+            System.out.printf("Solving %d independent components\n", solver.components);
+            solver.solve();
+            solved = solver.solved;
+            taken = solver.steps;
+            unsatisfied = solver.unsatisfied;
+            loss = solver.loss;
+            x = solver.x;
+        } else {
+            Solver solver = new ParallelSolver(graph, factory, restarts, seed).solve();
+            solved = solver.solved;
+            taken = solver.steps;
+            unsatisfied = solver.unsatisfied;
+            loss = solver.loss;
+            x = solver.x;
+        }
 
-        while (t-- > 0) {
-            //System.out.println(cg.forward(vars));
-            cg.forward(vars);
-            Double[] grads = cg.backward();
-            for (int i = 0; i < vars.length; i++) {
-                vars[i] += -alpha * grads[i];
-            }
+        if (save != null) GraphFile.save(save, graph, x);
+        print(solved, taken, unsatisfied, loss, preprocessor != null ? preprocessor.restore(x) : x);
+    }
+
+    /**
+     * Runs <em>OffHeapSolver.run</em> for the --offheap option of <em>main</em>. The off-heap classes are not compiled
+     * with the rest of the project, so they are looked up at run time: if they are missing, or cannot be loaded
+     * because preview features are not enabled, the option is refused like any other invalid one.
+     *
+     * @param dimacs
+     * @param load
+     * @param save
+     * @param maxSteps
+     * @param checkInterval
+     * @param optimizer
+     * @param learningRate
+     * @param seed
+     * @throws IOException
+     */
+    private static void offHeap(String dimacs, String load, String save, int maxSteps, int checkInterval,
+                                Optimizer optimizer, LearningRate learningRate, long seed) throws IOException {
+        MethodHandle run;
+        try {
+            Class.forName("OffHeapGraph");
+            run = MethodHandles.lookup().findStatic(Class.forName("OffHeapSolver"), "run",
+                    MethodType.methodType(void.class, String.class, String.class, String.class, int.class, int.class,
+                            Optimizer.class, LearningRate.class, long.class));
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("--offheap needs the classes of offheap/src on the class path");
+        } catch (UnsupportedClassVersionError e) {
+            throw new IllegalArgumentException("--offheap cannot load the off-heap classes: " + e.getMessage());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not find OffHeapSolver.run", e);
+        }
+        try {
+            run.invoke(dimacs, load, save, maxSteps, checkInterval, optimizer, learningRate, seed);
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
         }
-        for (int i = 0; i < vars.length; i++) {
-            System.out.printf("$%d = %f\n", i, 1 / (1 + Math.exp(-vars[i])));
+    }
+
+    /**
+     * Prints the outcome of <em>main</em> and the truth value of every variable.
+     *
+     * @param solved
+     * @param steps
+     * @param unsatisfied
+     * @param loss
+     * @param x
+     */
+    static void print(boolean solved, int steps, int unsatisfied, double loss, double[] x) {
+        if (solved) System.out.printf("Satisfied all expressions after %d steps\n", steps);
+        else System.out.printf("%d expressions unsatisfied after %d steps (loss %f)\n", unsatisfied, steps, loss);
+        for (int i = 0; i < x.length; i++) {
+            System.out.printf("$%d = %f\n", i, 1 / (1 + Math.exp(-x[i])));
         }
     }
 }
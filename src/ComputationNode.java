@@ -4,17 +4,18 @@
 public interface ComputationNode {
     /**
      * Implements a forward propagation step. Computes a function (which depends on the node type) based on the inputs
-     * of the computation nodes and returns it. This enables a recursive implementation of forward propagation on a
-     * Computation Graph
+     * of the computation nodes and returns it. The output is cached until <em>resetGrad</em> is called, so evaluating the
+     * nodes of a Computation Graph in topological order only ever recurses one level deep.
      *
      * @return
      */
     public Double forward();
 
     /**
-     * Runs backward propagation on the node's children (i.e. nodes for which it is an input) and returns a function of the
-     * values returned by these children. This enables a recursive implementation of backward propagation on a Computation
-     * Graph.
+     * Propagates the gradient accumulated at the node to its inputs, incrementing the gradient of each input by the
+     * node's gradient times the derivative of the node's output w.r.t that input. The node's own gradient must be complete
+     * when this is called, which is the case when a Computation Graph calls <em>backward</em> on its nodes in reverse
+     * topological order.
      */
     public void backward();
 
@@ -27,12 +28,30 @@ public interface ComputationNode {
     public void addInput(ComputationNode c);
 
     /**
-     * Sets a <em>ComputationNode</em> c as a child of the current computation node.
+     * Returns the inputs of the current computation node, in the order they were added. This is used to walk the
+     * circuit when compiling it into a <em>CompiledGraph</em>.
+     *
+     * @return
+     */
+    public ComputationNode[] inputs();
+
+    /**
+     * Sets a <em>ComputationNode</em> c as a child of the current computation node. Logical gates may have several
+     * children when a subexpression is shared between expressions; their gradient is then the sum of the gradients
+     * propagated by each child.
      *
      * @param c
      */
     public void setChild(ComputationNode c);
 
+    /**
+     * Removes one occurrence of <em>ComputationNode</em> c from the children of the current computation node. This is
+     * used to detach a duplicate subexpression that was replaced by a shared one.
+     *
+     * @param c
+     */
+    public void removeChild(ComputationNode c);
+
     /**
      * Increments the gradient of the current node by d.
      *
@@ -41,8 +60,8 @@ public interface ComputationNode {
     public void setGrad(Double d);
 
     /**
-     * Resets the gradient field of the current node to 0, resets its output to Null, and calls resetGrad on the node's
-     * child(ren). This is used to "clean" the <em>ComputationGraph</em> in between propagations.
+     * Resets the gradient field of the current node to 0 and resets its output to Null. This is used to "clean" the
+     * <em>ComputationGraph</em> in between propagations.
      */
     public void resetGrad();
 
@@ -42,11 +42,19 @@ public class CostNode implements ComputationNode {
         throw new IllegalArgumentException("Cannot get backward from last node in network");
     }
 
+    public ComputationNode[] inputs() {
+        return new ComputationNode[]{a};
+    }
+
     public void setChild(ComputationNode c) {
         if (child != null) throw new IllegalArgumentException("Child already defined");
         child = c;
     }
 
+    public void removeChild(ComputationNode c) {
+        if (child == c) child = null;
+    }
+
     public void addInput(ComputationNode c) {
         throw new IllegalArgumentException("Input already defined");
     }
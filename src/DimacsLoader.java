@@ -0,0 +1,323 @@
+/**
+ * Dependencies: (external) java.nio.channels.FileChannel, java.nio.ByteBuffer
+ * (internal) ComputationGraph, Preprocessor
+ * Data file: cnfSatBenchmark
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The {@code DimacsLoader} class reads a file in DIMACS cnf format and builds the corresponding
+ * <em>ComputationGraph</em> directly, without the text round trip through <em>CNFParser</em>.
+ * <p>
+ * The file is memory-mapped in windows of at most WINDOW bytes, and integers are parsed byte by byte, so no Strings or
+ * Scanners are created however large the file is. Each clause is handed to <em>ComputationGraph.addClause</em> as soon
+ * as its terminating 0 is read. DIMACS variables are numbered from 1, so the DIMACS literal i becomes $(i-1) and -i
+ * becomes ~$(i-1). The literals of each clause are sorted, repeated ones merged and tautologies dropped
+ * (see <em>normalize</em>) on the fly: a clause is already in negation normal form, so the circuit needs no
+ * <em>Simplifier</em> pass. An empty clause (a 0 with no literal before it) is valid DIMACS and makes the formula
+ * unsatisfiable: it is left out of the circuit and counted in <em>ComputationGraph.empty</em>.
+ * <p>
+ * The same parser also reads formulas already in memory (i.e. received by <em>SolverServer</em>), from a ByteBuffer.
+ * <p>
+ * Alternatively, <em>preprocess</em> hands the clauses to a <em>Preprocessor</em>, which simplifies the formula before
+ * the circuit is built, and <em>stream</em> hands them to any <em>Clauses</em> (i.e. to build a circuit off the heap,
+ * see <em>OffHeapGraph</em>).
+ *
+ * @author Felipe Nuti
+ */
+public class DimacsLoader implements Closeable {
+    private static final long WINDOW = 1L << 26;
+
+    private final FileChannel channel;
+    private final long length;
+    private Preprocessor preprocessor;
+    private Clauses sink;
+    private ByteBuffer buffer;
+    private long base;
+    private int c;
+
+    /**
+     * Opens the file at <em>path</em> and maps its first window.
+     *
+     * @param path
+     * @throws IOException
+     */
+    DimacsLoader(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        length = channel.size();
+        base = 0;
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(WINDOW, length));
+        advance();
+    }
+
+    /**
+     * Reads the formula in the remaining bytes of <em>bytes</em>.
+     *
+     * @param bytes
+     * @throws IOException
+     */
+    DimacsLoader(ByteBuffer bytes) throws IOException {
+        channel = null;
+        length = bytes.remaining();
+        base = 0;
+        buffer = bytes.slice();
+        advance();
+    }
+
+    /**
+     * Reads the DIMACS cnf formula in the remaining bytes of <em>bytes</em> into a <em>ComputationGraph</em>.
+     *
+     * @param bytes
+     * @return the circuit with one cost node per non-empty clause.
+     * @throws IOException
+     */
+    public static ComputationGraph load(ByteBuffer bytes) throws IOException {
+        try (DimacsLoader loader = new DimacsLoader(bytes)) {
+            return loader.read();
+        }
+    }
+
+    /**
+     * Reads the DIMACS cnf file <em>filename</em> into a <em>ComputationGraph</em>.
+     *
+     * @param filename
+     * @return the circuit with one cost node per non-empty clause.
+     * @throws IOException
+     */
+    public static ComputationGraph load(String filename) throws IOException {
+        try (DimacsLoader loader = new DimacsLoader(Paths.get(filename))) {
+            return loader.read();
+        }
+    }
+
+    /**
+     * Reads the DIMACS cnf file <em>filename</em> into a <em>Preprocessor</em> and runs it. The circuit of the remaining
+     * clauses is then given by <em>Preprocessor.build</em>, unless the formula was found unsatisfiable.
+     *
+     * @param filename
+     * @return
+     * @throws IOException
+     */
+    public static Preprocessor preprocess(String filename) throws IOException {
+        try (DimacsLoader loader = new DimacsLoader(Paths.get(filename))) {
+            loader.read(true);
+            loader.preprocessor.run();
+            return loader.preprocessor;
+        }
+    }
+
+    /**
+     * Receiver of the clauses read by <em>stream</em>.
+     */
+    interface Clauses {
+        /**
+         * Called once, with the number of variables and clauses of the problem line.
+         *
+         * @param n
+         * @param clauses
+         */
+        void start(int n, int clauses);
+
+        /**
+         * Called for every clause, whose literals are clause[0], ..., clause[k - 1], encoded as 2 * var + (1 if
+         * negated). The array is reused for the next clause. k is 0 for an empty clause.
+         *
+         * @param clause
+         * @param k
+         */
+        void add(int[] clause, int k);
+    }
+
+    /**
+     * Reads the DIMACS cnf file <em>filename</em>, handing its clauses to <em>sink</em> as they are read.
+     *
+     * @param filename
+     * @param sink
+     * @throws IOException
+     */
+    public static void stream(String filename, Clauses sink) throws IOException {
+        try (DimacsLoader loader = new DimacsLoader(Paths.get(filename))) {
+            loader.sink = sink;
+            loader.read(true);
+        }
+    }
+
+    /**
+     * Moves <em>c</em> to the next byte of the file, or to -1 at the end of the file. Maps the next window when the
+     * current one is exhausted.
+     *
+     * @throws IOException
+     */
+    private void advance() throws IOException {
+        if (!buffer.hasRemaining()) {
+            base += buffer.limit();
+            if (base >= length) {
+                c = -1;
+                return;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(WINDOW, length - base));
+        }
+        c = buffer.get() & 0xFF;
+    }
+
+    /**
+     * Offset in the file of the current byte, for error messages.
+     *
+     * @return
+     */
+    private long position() {
+        return base + buffer.position() - 1;
+    }
+
+    private boolean isNum(int c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Sorts the literals of a clause and merges repeated ones.
+     *
+     * @param clause
+     * @param k
+     * @return the number of distinct literals (0 for an empty clause, which no assignment satisfies), or -1 if the
+     * clause is a tautology.
+     */
+    static int normalize(int[] clause, int k) {
+        if (k == 0) return 0;
+        Arrays.sort(clause, 0, k);
+        int length = 1;
+        for (int t = 1; t < k; t++) {
+            if (clause[t] == clause[length - 1]) continue;
+            if (clause[t] >> 1 == clause[length - 1] >> 1) return -1;
+            clause[length++] = clause[t];
+        }
+        return length;
+    }
+
+    private boolean isSpace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    private void skipLine() throws IOException {
+        while (c != -1 && c != '\n') advance();
+    }
+
+    /**
+     * Parses the (possibly negative) integer starting at the current byte.
+     *
+     * @return
+     * @throws IOException
+     */
+    private int readInt() throws IOException {
+        while (isSpace(c)) advance();
+        boolean negative = c == '-';
+        if (negative) advance();
+        if (!isNum(c)) throw new IllegalArgumentException("Expected a number at byte " + position());
+        long x = 0;
+        while (isNum(c)) {
+            x = 10 * x + (c - '0');
+            if (x > Integer.MAX_VALUE) throw new IllegalArgumentException("Number too large at byte " + position());
+            advance();
+        }
+        return negative ? (int) -x : (int) x;
+    }
+
+    /**
+     * Reads the whole file, streaming clauses into a <em>ComputationGraph</em> created from the problem line.
+     *
+     * @return
+     * @throws IOException
+     */
+    ComputationGraph read() throws IOException {
+        return read(false);
+    }
+
+    /**
+     * Reads the whole file. If <em>collect</em> is set, the clauses are added to <em>sink</em>, or if it is null to a
+     * new <em>Preprocessor</em>, instead of a circuit, and null is returned.
+     *
+     * @param collect
+     * @return
+     * @throws IOException
+     */
+    private ComputationGraph read(boolean collect) throws IOException {
+        ComputationGraph cg = null;
+        int n = -1;
+        int[] clause = new int[16];
+        int k = 0, j = 0;
+
+        while (c != -1) {
+            if (isSpace(c)) {
+                advance();
+            } else if (c == 'c') {
+                skipLine();
+            } else if (c == '%') {
+                break;
+            } else if (c == 'p') {
+                if (n >= 0) throw new IllegalArgumentException("Duplicate problem line at byte " + position());
+                while (c != -1 && !isNum(c) && c != '\n') advance();
+                n = readInt();
+                int clauses = readInt();
+                if (sink != null) sink.start(n, clauses);
+                else if (collect) preprocessor = new Preprocessor(n);
+                else cg = new ComputationGraph(n, clauses);
+                skipLine();
+            } else if (c == '-' || isNum(c)) {
+                if (n < 0) throw new IllegalArgumentException("Clause before problem line at byte " + position());
+                int x = readInt();
+                if (x == 0) {
+                    if (sink != null) sink.add(clause, k);
+                    else if (collect) preprocessor.addClause(clause, k);
+                    else add(cg, clause, k, j);
+                    j++;
+                    k = 0;
+                    continue;
+                }
+                int var = Math.abs(x) - 1;
+                if (var >= n) {
+                    throw new IllegalArgumentException("Variable " + x + " out of bounds at byte " + position());
+                }
+                if (k == clause.length) clause = Arrays.copyOf(clause, 2 * k);
+                clause[k++] = 2 * var + (x < 0 ? 1 : 0);
+            } else {
+                throw new IllegalArgumentException("Unexpected character '" + (char) c + "' at byte " + position());
+            }
+        }
+
+        if (n < 0) throw new IllegalArgumentException("Missing problem line");
+        if (collect) {
+            if (k > 0 && sink != null) sink.add(clause, k);
+            else if (k > 0) preprocessor.addClause(clause, k);
+            return null;
+        }
+        if (k > 0) add(cg, clause, k, j);
+        cg.sortNodes();
+        return cg;
+    }
+
+    /**
+     * Adds the first k literals of <em>clause</em> to <em>cg</em> as its jth expression, unless they make a tautology,
+     * in which case expression j is left out, or an empty clause, which is counted in <em>cg.empty</em> instead.
+     *
+     * @param cg
+     * @param clause
+     * @param k
+     * @param j
+     */
+    private static void add(ComputationGraph cg, int[] clause, int k, int j) {
+        k = normalize(clause, k);
+        if (k > 0) cg.addClause(clause, k, j);
+        else if (k == 0) cg.empty++;
+    }
+
+    public void close() throws IOException {
+        if (channel != null) channel.close();
+    }
+}
@@ -0,0 +1,368 @@
+/**
+ * Compilation: javac EquivalenceCheck.java
+ * Execution: java EquivalenceCheck [--variables n] [--seed s]
+ * Dependencies: (external) java.math.BigDecimal, java.math.MathContext, java.util.ArrayList, java.util.Arrays,
+ * java.util.Random
+ * (internal) ComputationGraph, CompiledGraph, PartitionedGraph, KernelCompiler, InstanceGenerator
+ * <p>
+ * Checks that every way of evaluating a circuit computes the same cost and gradients.
+ */
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The {@code EquivalenceCheck} class evaluates a generated instance with every engine and compares the cost and the
+ * gradients of each with those of the plain <em>CompiledGraph.forward</em> and <em>backward</em> sweeps, at the same
+ * random assignment. The instance mixes random 3-SAT clauses, nested expressions (AND, OR and NOT gates sharing
+ * subexpressions) and a few clauses wider than <em>KernelCompiler.WIDE</em>. The engines compared are:
+ * - nodes: <em>ComputationGraph.forward</em> and <em>backward</em> on the node objects, before compiling.
+ * - batched: the batched sweeps, for every assignment of a batch.
+ * - sampled: the sampled sweeps over a sample holding every expression once.
+ * - incremental: <em>forwardIncremental</em> after a few variables changed, followed by a full <em>backward</em>.
+ * - partitioned: a <em>PartitionedGraph</em> of the circuit.
+ * - kernel: the code generated by <em>KernelCompiler</em> (skipped without the jdk.compiler module).
+ * - single: the single-precision sweeps, against the same decimal reference, with a looser tolerance: a float keeps 24
+ * bits (about 6e-8), and the rounding errors of the few gates above a variable and of the sums of gradients add up to
+ * a few 1e-7, far below the 1e-4 allowed but far above the errors of double precision.
+ * - saturated: the same at an assignment whose variables all have |x| above 20, so their sigmoids round to 1 in
+ * single precision. The double-precision sweeps round the complement of a saturated gate to 0 (and the cost to
+ * infinity) there, so the reference is a decimal evaluation of the tape (see <em>exact</em>). The cost must stay
+ * finite and no gradient may vanish.
+ * - extended: a tape compiled from half of the expressions, then extended with the others, interleaved with a few
+ * more which are compiled and retracted again (see <em>ComputationGraph.compile</em>).
+ * <p>
+ * Errors are relative to the magnitude of the reference value (absolute below 1). Each engine prints its largest
+ * error; the program exits with status 1 if any engine is off by more than its tolerance.
+ *
+ * @author Felipe Nuti
+ */
+public class EquivalenceCheck {
+    private static final double TOLERANCE = 1e-9;
+    private static final double SINGLE_TOLERANCE = 1e-4;
+    private static final int BATCH = 4;
+    private static final MathContext DIGITS = new MathContext(40);
+
+    private final int n;
+    private final ArrayList<String> expressions;
+    private final CompiledGraph reference;
+    private final Random random;
+    private int failures;
+
+    /**
+     * Generates the instance with <em>n</em> variables drawn from <em>seed</em>, and compiles its reference tape.
+     *
+     * @param n
+     * @param seed
+     */
+    EquivalenceCheck(int n, long seed) {
+        this.n = n;
+        this.expressions = InstanceGenerator.kSat(n, 3.0, 3, seed);
+        this.expressions.addAll(InstanceGenerator.kSat(n, 0.02, Math.min(n, 40), seed + 2));
+        this.expressions.addAll(InstanceGenerator.nested(n, 1.0, 4, seed + 1));
+        this.reference = build(expressions, expressions.size()).compile();
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Builds the circuit of the first <em>count</em> expressions of <em>source</em>, added one by one (so, like the
+     * clauses of a DIMACS file, they are not simplified and every engine sees the same gates).
+     *
+     * @param source
+     * @param count
+     * @return
+     */
+    private ComputationGraph build(ArrayList<String> source, int count) {
+        ComputationGraph cg = new ComputationGraph(n, count);
+        for (int j = 0; j < count; j++) cg.add(source.get(j));
+        cg.sortNodes();
+        return cg;
+    }
+
+    private double[] assignment() {
+        double[] x = new double[n];
+        for (int i = 0; i < n; i++) x[i] = 2 * random.nextGaussian();
+        return x;
+    }
+
+    private static double error(double value, double expected) {
+        return Math.abs(value - expected) / Math.max(1.0, Math.abs(expected));
+    }
+
+    /**
+     * Largest error of the cost <em>cost</em> and the gradients <em>grads</em> against those computed by the reference
+     * tape at <em>x</em>.
+     *
+     * @param x
+     * @param cost
+     * @param grads
+     * @return
+     */
+    private double error(double[] x, double cost, double[] grads) {
+        double[] expected = new double[n];
+        double e = error(cost, reference.forward(x));
+        reference.backward(expected);
+        for (int i = 0; i < n; i++) e = Math.max(e, error(grads[i], expected[i]));
+        return e;
+    }
+
+    /**
+     * Prints the largest error of an engine and counts it as a failure if it exceeds <em>tolerance</em>.
+     *
+     * @param engine
+     * @param error
+     * @param tolerance
+     */
+    private void report(String engine, double error, double tolerance) {
+        boolean ok = error <= tolerance;
+        if (!ok) failures++;
+        System.out.printf("%-12s %.3e %s%n", engine, error, ok ? "ok" : "FAILED");
+    }
+
+    private void nodes() {
+        ComputationGraph cg = build(expressions, expressions.size());
+        double[] x = assignment();
+        Double[] vars = new Double[n];
+        for (int i = 0; i < n; i++) vars[i] = x[i];
+        double cost = cg.forward(vars);
+        Double[] grads = cg.backward();
+        double[] out = new double[n];
+        for (int i = 0; i < n; i++) out[i] = grads[i];
+        report("nodes", error(x, cost, out), TOLERANCE);
+    }
+
+    private void batched() {
+        CompiledGraph graph = new CompiledGraph(reference);
+        double[][] x = new double[BATCH][];
+        double[] xs = new double[n * BATCH], out = new double[n * BATCH], losses = new double[BATCH];
+        for (int j = 0; j < BATCH; j++) {
+            x[j] = assignment();
+            for (int i = 0; i < n; i++) xs[i * BATCH + j] = x[j][i];
+        }
+        graph.forward(xs, BATCH, losses);
+        graph.backward(out, BATCH);
+        double e = 0.0;
+        double[] grads = new double[n];
+        for (int j = 0; j < BATCH; j++) {
+            for (int i = 0; i < n; i++) grads[i] = out[i * BATCH + j];
+            e = Math.max(e, error(x[j], losses[j], grads));
+        }
+        report("batched", e, TOLERANCE);
+    }
+
+    private void sampled() {
+        CompiledGraph graph = new CompiledGraph(reference);
+        graph.buildCones();
+        int[] all = new int[graph.expressions()];
+        for (int j = 0; j < all.length; j++) all[j] = j;
+        double[] x = assignment(), grads = new double[n];
+        double cost = graph.forward(x, all, all.length);
+        graph.backward(grads, all, all.length);
+        report("sampled", error(x, cost, grads), TOLERANCE);
+    }
+
+    private void incremental() {
+        CompiledGraph graph = new CompiledGraph(reference);
+        graph.buildFanout();
+        double[] x = assignment(), grads = new double[n];
+        graph.forward(x);
+        int[] changed = new int[Math.max(1, n / 20)];
+        for (int t = 0; t < changed.length; t++) {
+            changed[t] = random.nextInt(n);
+            x[changed[t]] = -x[changed[t]] + random.nextGaussian();
+        }
+        double cost = graph.forwardIncremental(x, changed, changed.length);
+        graph.backward(grads);
+        report("incremental", error(x, cost, grads), TOLERANCE);
+    }
+
+    private void partitioned() {
+        PartitionedGraph graph = new PartitionedGraph(new CompiledGraph(reference), 4);
+        double[] x = assignment(), grads = new double[n];
+        double cost = graph.forward(x);
+        graph.backward(grads);
+        report("partitioned", error(x, cost, grads), TOLERANCE);
+    }
+
+    private void kernel() {
+        CompiledGraph graph = new CompiledGraph(reference);
+        try {
+            graph.kernel = KernelCompiler.compile(graph);
+        } catch (IllegalStateException e) {
+            System.out.printf("%-12s skipped: %s%n", "kernel", e.getMessage());
+            return;
+        }
+        double[] x = assignment(), grads = new double[n];
+        double cost = graph.forward(x);
+        graph.backward(grads);
+        report("kernel", error(x, cost, grads), TOLERANCE);
+    }
+
+    /**
+     * Returns an assignment whose variables are all saturated: |x[i]| is between 20 and 40, so their sigmoids round to
+     * 1 in single precision.
+     *
+     * @return
+     */
+    private double[] saturated() {
+        double[] x = new double[n];
+        for (int i = 0; i < n; i++) x[i] = (random.nextBoolean() ? 1 : -1) * (20 + 20 * random.nextDouble());
+        return x;
+    }
+
+    /**
+     * Evaluates the reference tape at <em>x</em> in decimal arithmetic with 40 significant digits, leaving the
+     * gradients in <em>out</em>, and returns the cost. Every node keeps both its value and its complement, each
+     * computed as a sum or product of positive terms (e.g. 1 - ab = (1 - a) + a(1 - b)), and the sigmoid of each
+     * variable and its complement are each computed in double precision, so no digit is lost to cancellation: unlike
+     * the double-precision sweeps, which round the complement of a saturated gate to 0, this is the reference at
+     * saturated assignments.
+     *
+     * @param x
+     * @param out
+     * @return
+     */
+    private double exact(double[] x, double[] out) {
+        CompiledGraph t = reference;
+        BigDecimal[] val = new BigDecimal[t.size], comp = new BigDecimal[t.size], grad = new BigDecimal[t.size];
+        for (int i = 0; i < t.size; i++) {
+            int s = t.inStart[i], e = t.inStart[i + 1];
+            BigDecimal p = BigDecimal.ONE, q = BigDecimal.ZERO;
+            switch (t.op[i]) {
+                case CompiledGraph.VAR:
+                    val[i] = new BigDecimal(1 / (1 + Math.exp(-x[t.in[s]])));
+                    comp[i] = new BigDecimal(1 / (1 + Math.exp(x[t.in[s]])));
+                    break;
+                case CompiledGraph.NOT:
+                    val[i] = comp[t.in[s]];
+                    comp[i] = val[t.in[s]];
+                    break;
+                case CompiledGraph.AND:
+                    for (int k = s; k < e; k++) {
+                        q = q.add(p.multiply(comp[t.in[k]], DIGITS), DIGITS);
+                        p = p.multiply(val[t.in[k]], DIGITS);
+                    }
+                    val[i] = p;
+                    comp[i] = q;
+                    break;
+                default:
+                    for (int k = s; k < e; k++) {
+                        q = q.add(p.multiply(val[t.in[k]], DIGITS), DIGITS);
+                        p = p.multiply(comp[t.in[k]], DIGITS);
+                    }
+                    val[i] = q;
+                    comp[i] = p;
+            }
+            grad[i] = BigDecimal.ZERO;
+        }
+        double cost = 0.0;
+        for (int j = 0; j < t.m; j++) {
+            BigDecimal v = val[t.roots[j]];
+            int e = v.precision() - v.scale() - 1;
+            cost -= Math.log(v.scaleByPowerOfTen(-e).doubleValue()) + e * Math.log(10);
+            grad[t.roots[j]] = grad[t.roots[j]].subtract(BigDecimal.ONE.divide(v, DIGITS), DIGITS);
+        }
+
+        Arrays.fill(out, 0.0);
+        for (int i = t.size - 1; i >= 0; i--) {
+            int s = t.inStart[i], e = t.inStart[i + 1];
+            BigDecimal g = grad[i];
+            if (g.signum() == 0) continue;
+            if (t.op[i] == CompiledGraph.VAR) {
+                out[t.in[s]] += g.multiply(val[i].multiply(comp[i], DIGITS), DIGITS).doubleValue();
+            } else if (t.op[i] == CompiledGraph.NOT) {
+                grad[t.in[s]] = grad[t.in[s]].subtract(g, DIGITS);
+            } else {
+                BigDecimal[] factor = t.op[i] == CompiledGraph.AND ? val : comp;
+                for (int k = s; k < e; k++) {
+                    BigDecimal d = g;
+                    for (int l = s; l < e; l++) if (l != k) d = d.multiply(factor[t.in[l]], DIGITS);
+                    grad[t.in[k]] = grad[t.in[k]].add(d, DIGITS);
+                }
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * Compares the single-precision sweeps with <em>exact</em> at <em>x</em>. Besides agreeing within SINGLE_TOLERANCE,
+     * the cost must be finite and no gradient may vanish where the exact one does not (a zero gradient stalls the
+     * descent, whatever its size).
+     *
+     * @param x
+     * @return
+     */
+    private double single(double[] x) {
+        CompiledGraph graph = new CompiledGraph(reference);
+        graph.single = true;
+        double[] grads = new double[n], expected = new double[n];
+        double cost = graph.forward(x);
+        graph.backward(grads);
+        double e = Double.isInfinite(cost) ? Double.POSITIVE_INFINITY : error(cost, exact(x, expected));
+        for (int i = 0; i < n; i++) {
+            if (grads[i] == 0.0 && expected[i] != 0.0) e = Double.POSITIVE_INFINITY;
+            e = Math.max(e, error(grads[i], expected[i]));
+        }
+        return e;
+    }
+
+    private void single() {
+        report("single", single(assignment()), SINGLE_TOLERANCE);
+        report("saturated", single(saturated()), SINGLE_TOLERANCE);
+    }
+
+    private void extended() {
+        int half = expressions.size() / 2;
+        ComputationGraph cg = build(expressions, half);
+        CompiledGraph graph = cg.compile();
+        ArrayList<String> extra = InstanceGenerator.nested(n, 0.1, 3, random.nextLong());
+        for (int j = half; j < expressions.size(); j++) {
+            cg.add(expressions.get(j));
+            if (j % 8 != 0) continue;
+            int k = cg.add(extra.get(j % extra.size()));
+            cg.compile();
+            cg.retract(k);
+        }
+        if (cg.compile() != graph) throw new IllegalStateException("The tape was compiled again from scratch");
+        double[] x = assignment(), grads = new double[n];
+        double cost = graph.forward(x);
+        graph.backward(grads);
+        report("extended", error(x, cost, grads), TOLERANCE);
+    }
+
+    /**
+     * Runs every comparison. Options:
+     * - --variables n: number of variables of the generated instance (200 by default).
+     * - --seed s: seed of the instance and of the assignments (1 by default).
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+        int n = 200;
+        long seed = 1;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--variables")) n = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--seed")) seed = Long.parseLong(args[++i]);
+            else throw new IllegalArgumentException("Unknown option " + args[i]);
+        }
+        if (n < 3) throw new IllegalArgumentException("Need at least 3 variables");
+
+        EquivalenceCheck check = new EquivalenceCheck(n, seed);
+        System.out.println(check.expressions.size() + " expressions, " + check.reference.size + " tape nodes");
+        check.nodes();
+        check.batched();
+        check.sampled();
+        check.incremental();
+        check.partitioned();
+        check.kernel();
+        check.single();
+        check.extended();
+        if (check.failures > 0) {
+            System.out.println(check.failures + " engine(s) disagree with the reference");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Dependencies: (external) java.util.Arrays
+ * <p>
+ * Parser of the logical expressions read by <em>ComputationGraph</em>.
+ */
+
+import java.util.Arrays;
+
+/**
+ * The {@code ExpressionParser} class parses one logical expression (syntax detailed in <em>ComputationGraph</em>) into
+ * a program in postfix order, without creating any node of the circuit. This way expressions can be parsed on several
+ * threads at once, each with its own parser, and then linked to the shared <em>SigmoidGate</em>s of the circuit one
+ * after the other by <em>ComputationGraph</em>.
+ * <p>
+ * The grammar, from the lowest to the highest precedence, is:
+ * - expression := term v term v ... v term
+ * - term := factor ^ factor ^ ... ^ factor
+ * - factor := ~factor | (expression) | $i
+ * so ~ binds tighter than ^, which binds tighter than v (i.e. $0 v $1 ^ ~$2 means $0 v ($1 ^ (~$2))). A chain of the
+ * same operation becomes a single n-ary gate. Spaces and tabs are ignored.
+ * <p>
+ * The parser reads the characters in a single pass and keeps its state (the pending operands of every open
+ * parenthesis) in primitive arrays which are reused across expressions, so no object is allocated per token and no
+ * recursion is involved, however deeply the parentheses are nested. Malformed expressions are reported with an
+ * IllegalArgumentException giving the column of the offending character.
+ * <p>
+ * Format of a program: a non-negative entry i pushes the $i variable; a negative entry pops the top k operands and
+ * pushes a gate of <em>type</em> (NOT, AND or OR) over them, where -entry = 4 * k + type.
+ *
+ * @author Felipe Nuti
+ */
+public class ExpressionParser {
+    static final int NOT = 1;
+    static final int AND = 2;
+    static final int OR = 3;
+
+    private int[] program;
+    private int length;
+
+    private int[] orCount;
+    private int[] andCount;
+    private int[] nots;
+
+    /**
+     * Initializes a parser with empty buffers.
+     */
+    ExpressionParser() {
+        program = new int[64];
+        orCount = new int[16];
+        andCount = new int[16];
+        nots = new int[16];
+    }
+
+    /**
+     * Encodes a gate of type <em>type</em> over the top k operands.
+     *
+     * @param type
+     * @param k
+     * @return
+     */
+    static int gate(int type, int k) {
+        return -(4 * k + type);
+    }
+
+    static int type(int entry) {
+        return -entry & 3;
+    }
+
+    static int arity(int entry) {
+        return -entry >> 2;
+    }
+
+    private void emit(int entry) {
+        if (length == program.length) program = Arrays.copyOf(program, 2 * length);
+        program[length++] = entry;
+    }
+
+    /**
+     * Ends the term of the parenthesis level <em>depth</em>: emits the AND of its factors if there are several.
+     *
+     * @param depth
+     */
+    private void endTerm(int depth) {
+        if (andCount[depth] > 1) emit(gate(AND, andCount[depth]));
+        andCount[depth] = 0;
+        orCount[depth]++;
+    }
+
+    /**
+     * Ends the expression of the parenthesis level <em>depth</em>: emits the OR of its terms if there are several.
+     *
+     * @param depth
+     */
+    private void endExpression(int depth) {
+        endTerm(depth);
+        if (orCount[depth] > 1) emit(gate(OR, orCount[depth]));
+        orCount[depth] = 0;
+    }
+
+    /**
+     * Ends a factor at parenthesis level <em>depth</em>: applies the negations written before it.
+     *
+     * @param depth
+     */
+    private void endFactor(int depth) {
+        for (int k = 0; k < nots[depth]; k++) emit(gate(NOT, 1));
+        nots[depth] = 0;
+        andCount[depth]++;
+    }
+
+    private IllegalArgumentException error(String message, int column) {
+        return new IllegalArgumentException(message + " at column " + (column + 1));
+    }
+
+    /**
+     * Parses the expression <em>s</em> over the variables $0, ..., $(n-1).
+     *
+     * @param s
+     * @param n
+     * @return the program of the expression, in postfix order.
+     */
+    int[] parse(CharSequence s, int n) {
+        length = 0;
+        int depth = 0;
+        orCount[0] = andCount[0] = nots[0] = 0;
+        boolean operand = true;
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == ' ' || c == '\t') continue;
+            if (operand) {
+                if (c == '~') {
+                    nots[depth]++;
+                } else if (c == '(') {
+                    if (++depth == nots.length) {
+                        orCount = Arrays.copyOf(orCount, 2 * depth);
+                        andCount = Arrays.copyOf(andCount, 2 * depth);
+                        nots = Arrays.copyOf(nots, 2 * depth);
+                    }
+                    orCount[depth] = andCount[depth] = nots[depth] = 0;
+                } else if (c == '$') {
+                    int start = i;
+                    long x = 0;
+                    while (i + 1 < s.length() && s.charAt(i + 1) >= '0' && s.charAt(i + 1) <= '9') {
+                        x = 10 * x + (s.charAt(++i) - '0');
+                        if (x >= n) throw error("Variable name out of bounds", start);
+                    }
+                    if (i == start) throw error("Expected a variable number", start + 1);
+                    emit((int) x);
+                    endFactor(depth);
+                    operand = false;
+                } else {
+                    throw error("Expected '$', '~' or '(' but found '" + c + "'", i);
+                }
+            } else {
+                if (c == '^') {
+                    operand = true;
+                } else if (c == 'v') {
+                    endTerm(depth);
+                    operand = true;
+                } else if (c == ')') {
+                    if (depth == 0) throw error("Unmatched ')'", i);
+                    endExpression(depth--);
+                    endFactor(depth);
+                } else {
+                    throw error("Expected '^', 'v' or ')' but found '" + c + "'", i);
+                }
+            }
+        }
+
+        if (operand) throw error("Unexpected end of expression", s.length());
+        if (depth > 0) throw error("Unmatched '('", s.length());
+        endExpression(0);
+        return Arrays.copyOf(program, length);
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * Dependencies: (external) java.util.Arrays
+ */
+
+import java.util.Arrays;
+
+/**
+ * The {@code GateKey} class is the key under which structurally identical gates are hash-consed by
+ * <em>ComputationGraph.share</em> and <em>Simplifier</em>: a gate type and the ids of its inputs (sorted by the caller
+ * when their order does not matter). Its hash is computed once, from the primitives, so looking up a gate allocates
+ * nothing but the key itself.
+ *
+ * @author Felipe Nuti
+ */
+final class GateKey {
+    final int type;
+    final int[] ids;
+    private final int hash;
+
+    /**
+     * Initializes the key of a gate of type <em>type</em> over inputs <em>ids</em>. The array is kept, not copied.
+     *
+     * @param type
+     * @param ids
+     */
+    GateKey(int type, int[] ids) {
+        this.type = type;
+        this.ids = ids;
+        this.hash = 31 * type + Arrays.hashCode(ids);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof GateKey)) return false;
+        GateKey k = (GateKey) o;
+        return hash == k.hash && type == k.type && Arrays.equals(ids, k.ids);
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Dependencies: (external) java.nio.channels.FileChannel, java.nio.MappedByteBuffer
+ * (internal) CompiledGraph
+ */
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The {@code GraphFile} class saves a <em>CompiledGraph</em> to a binary file and loads it back, so that repeated runs
+ * on the same instance skip reading and parsing the expressions and building the circuit. A file can also hold an
+ * assignment of the variables (i.e. the result of a previous run), from which a <em>Solver</em> can be warm started.
+ * <p>
+ * Layout of a file, little-endian, with every array aligned to its element size:
+ * - header of 8 ints: MAGIC, VERSION, flags (HAS_ASSIGNMENT), number of variables n, number of nodes, number of
+ * entries of <em>in</em>, number of roots, and 0.
+ * - op, one byte per node, padded to a multiple of 8 bytes.
+ * - inStart, in and roots, as ints.
+ * - if HAS_ASSIGNMENT is set, padding to a multiple of 8 bytes and the n doubles of the assignment.
+ * <p>
+ * <em>load</em> memory-maps the file and copies each array out in bulk, so nothing is parsed. The tape is checked
+ * (every input precedes its node, variables are in bounds, etc.) before it is used, so a corrupt file is reported with
+ * an IllegalArgumentException rather than producing a wrong circuit. Files of another VERSION are rejected.
+ *
+ * @author Felipe Nuti
+ */
+public class GraphFile {
+    static final int MAGIC = 0x47544153;
+    static final int VERSION = 1;
+    static final int HAS_ASSIGNMENT = 1;
+    static final int HEADER = 32;
+
+    final CompiledGraph graph;
+    final double[] x;
+
+    private GraphFile(CompiledGraph graph, double[] x) {
+        this.graph = graph;
+        this.x = x;
+    }
+
+    static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    /**
+     * Number of bytes of a file with the given sizes.
+     *
+     * @param n
+     * @param size
+     * @param edges
+     * @param roots
+     * @param assignment
+     * @return
+     */
+    static long length(int n, int size, int edges, int roots, boolean assignment) {
+        long length = align(HEADER + (long) size) + 4L * (size + 1 + (long) edges + roots);
+        return assignment ? align(length) + 8L * n : length;
+    }
+
+    /**
+     * Saves the tape of <em>graph</em>, and the assignment <em>x</em> if it is not null, to the file <em>filename</em>
+     * (which is overwritten).
+     *
+     * @param filename
+     * @param graph
+     * @param x
+     * @throws IOException
+     */
+    public static void save(String filename, CompiledGraph graph, double[] x) throws IOException {
+        if (x != null && x.length != graph.n) throw new IllegalArgumentException("Assignment does not match the graph");
+        int edges = graph.inStart[graph.size];
+        long length = length(graph.n, graph.size, edges, graph.m, x != null);
+        if (length > Integer.MAX_VALUE) throw new IllegalArgumentException("Graph too large to be saved");
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(x != null ? HAS_ASSIGNMENT : 0).putInt(graph.n)
+                    .putInt(graph.size).putInt(edges).putInt(graph.m).putInt(0);
+            buffer.put(graph.op, 0, graph.size);
+            buffer.position((int) align(buffer.position()));
+            buffer.asIntBuffer().put(graph.inStart, 0, graph.size + 1).put(graph.in, 0, edges)
+                    .put(graph.roots, 0, graph.m);
+            if (x != null) {
+                buffer.position((int) align(buffer.position() + 4L * (graph.size + 1 + edges + graph.m)));
+                buffer.asDoubleBuffer().put(x);
+            }
+            buffer.force();
+        }
+    }
+
+    /**
+     * Loads the file <em>filename</em> written by <em>save</em>.
+     *
+     * @param filename
+     * @return the circuit, in <em>graph</em>, and the saved assignment, in <em>x</em> (null if there is none).
+     * @throws IOException
+     */
+    public static GraphFile load(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            long fileLength = channel.size();
+            if (fileLength < HEADER) throw new IllegalArgumentException("Not a graph file: " + filename);
+            if (fileLength > Integer.MAX_VALUE) throw new IllegalArgumentException("Graph file too large");
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt() != MAGIC) throw new IllegalArgumentException("Not a graph file: " + filename);
+            int version = buffer.getInt();
+            if (version != VERSION) throw new IllegalArgumentException("Unsupported graph file version " + version);
+            int flags = buffer.getInt();
+            int n = buffer.getInt(), size = buffer.getInt(), edges = buffer.getInt(), m = buffer.getInt();
+            buffer.getInt();
+            boolean assignment = (flags & HAS_ASSIGNMENT) != 0;
+            if (n < 0 || size < 0 || edges < 0 || m < 0 || length(n, size, edges, m, assignment) != fileLength) {
+                throw new IllegalArgumentException("Malformed graph file: sizes do not match its length");
+            }
+
+            byte[] op = new byte[size];
+            int[] inStart = new int[size + 1];
+            int[] in = new int[edges];
+            int[] roots = new int[m];
+            buffer.get(op);
+            buffer.position((int) align(buffer.position()));
+            buffer.asIntBuffer().get(inStart).get(in).get(roots);
+            double[] x = null;
+            if (assignment) {
+                x = new double[n];
+                buffer.position((int) align(buffer.position() + 4L * (size + 1 + edges + m)));
+                buffer.asDoubleBuffer().get(x);
+            }
+            check(n, op, inStart, in, roots);
+            return new GraphFile(new CompiledGraph(n, op, inStart, in, roots), x);
+        }
+    }
+
+    /**
+     * Checks that the arrays read from a file describe a valid tape (see <em>CompiledGraph</em>).
+     *
+     * @param n
+     * @param op
+     * @param inStart
+     * @param in
+     * @param roots
+     */
+    private static void check(int n, byte[] op, int[] inStart, int[] in, int[] roots) {
+        int size = op.length;
+        if (inStart[0] != 0 || inStart[size] != in.length) throw new IllegalArgumentException("Malformed graph file");
+        for (int i = 0; i < size; i++) {
+            int s = inStart[i], e = inStart[i + 1];
+            if (e < s || e > in.length) throw new IllegalArgumentException("Malformed inputs of node " + i);
+            switch (op[i]) {
+                case CompiledGraph.VAR:
+                    if (e - s != 1 || in[s] < 0 || in[s] >= n) {
+                        throw new IllegalArgumentException("Malformed variable node " + i);
+                    }
+                    continue;
+                case CompiledGraph.NOT:
+                    if (e - s != 1) throw new IllegalArgumentException("Malformed NOT node " + i);
+                    break;
+                case CompiledGraph.AND:
+                    // without inputs, the always-true root of retracted expressions
+                    break;
+                case CompiledGraph.OR:
+                    if (e == s) throw new IllegalArgumentException("Gate without inputs at node " + i);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown opcode " + op[i] + " at node " + i);
+            }
+            for (int k = s; k < e; k++) {
+                if (in[k] < 0 || in[k] >= i) throw new IllegalArgumentException("Input out of order at node " + i);
+            }
+        }
+        for (int r : roots) if (r < 0 || r >= size) throw new IllegalArgumentException("Root out of bounds");
+    }
+}
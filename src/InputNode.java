@@ -23,21 +23,13 @@ public class InputNode implements ComputationNode {
     }
 
     /**
-     * Runs <em>backward</em> on all children nodes.
-     */
-    private void getBackward() {
-        if (child == null) throw new NullPointerException("Child not defined");
-        child.backward();
-    }
-
-    /**
-     * Returns the gradient of the cost of a computation graph with respect to the variable stored in the InputNode. This
-     * is used to implement stochastic gradient descent on the inputs to a computation graph.
+     * Returns the gradient of the cost of a computation graph with respect to the variable stored in the InputNode, once
+     * the graph has run its backward sweep. This is used to implement stochastic gradient descent on the inputs to a
+     * computation graph.
      *
      * @return
      */
     public Double resultingGrad() {
-        getBackward();
         return grad;
     }
 
@@ -68,11 +60,19 @@ public class InputNode implements ComputationNode {
         return;
     }
 
+    public ComputationNode[] inputs() {
+        return new ComputationNode[0];
+    }
+
     public void setChild(ComputationNode c) {
         if (child != null) throw new IllegalCallerException("Child already defined");
         child = c;
     }
 
+    public void removeChild(ComputationNode c) {
+        if (child == c) child = null;
+    }
+
     public void setGrad(Double d) {
         grad += d;
         //System.out.printf("Grad at %d (%c) -> %f\n", this.id(), this.type(), grad);
@@ -80,7 +80,6 @@ public class InputNode implements ComputationNode {
 
     public void resetGrad() {
         grad = 0.0;
-        child.resetGrad();
     }
 
     public char type() {
@@ -0,0 +1,115 @@
+/**
+ * Compilation: javac InstanceGenerator.java
+ * Execution: java InstanceGenerator ksat n ratio k seed > outputFile
+ * java InstanceGenerator nested n ratio depth seed > outputFile
+ * Dependencies: (external) java.util.ArrayList, java.util.Random
+ * <p>
+ * Seeded generator of random instances in the input format of <em>ComputationGraph</em>, used by the benchmarks.
+ */
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * The {@code InstanceGenerator} class generates random logical expressions in the format parsed by
+ * <em>ComputationGraph</em>. The same seed always gives the same instance, so that performance can be compared across
+ * changes on identical inputs. Two families are supported:
+ * - random k-SAT: round(ratio * n) clauses, each the OR of k distinct variables chosen uniformly among n, each negated
+ * with probability 1/2 (i.e. $3 v ~$17 v $42). Random 3-SAT is hardest around ratio 4.26.
+ * - nested expressions: round(ratio * n) expressions like the ones in testInput, built by wrapping a literal
+ * <em>depth</em> times as (e) ^ l or (e) v l with random literals l, and negating the result with probability 1/2.
+ *
+ * @author Felipe Nuti
+ */
+public class InstanceGenerator {
+    /**
+     * Returns the literal $v or ~$v, chosen at random.
+     *
+     * @param random
+     * @param n
+     * @return
+     */
+    private static String literal(Random random, int n) {
+        return (random.nextBoolean() ? "~$" : "$") + random.nextInt(n);
+    }
+
+    /**
+     * Generates a random k-SAT instance.
+     *
+     * @param n     - number of variables.
+     * @param ratio - number of clauses per variable.
+     * @param k     - number of literals per clause; at most n.
+     * @param seed
+     * @return the clauses, one expression per entry.
+     */
+    public static ArrayList<String> kSat(int n, double ratio, int k, long seed) {
+        if (k < 1 || k > n) throw new IllegalArgumentException("Clause size must be between 1 and n");
+        Random random = new Random(seed);
+        int m = (int) Math.round(ratio * n);
+        ArrayList<String> expressions = new ArrayList<>(m);
+        int[] vars = new int[k];
+        for (int j = 0; j < m; j++) {
+            StringBuilder clause = new StringBuilder();
+            for (int i = 0; i < k; i++) {
+                int v;
+                boolean repeated;
+                do {
+                    v = random.nextInt(n);
+                    repeated = false;
+                    for (int t = 0; t < i; t++) repeated |= vars[t] == v;
+                } while (repeated);
+                vars[i] = v;
+                if (i > 0) clause.append(" v ");
+                clause.append(random.nextBoolean() ? "~$" : "$").append(v);
+            }
+            expressions.add(clause.toString());
+        }
+        return expressions;
+    }
+
+    /**
+     * Generates random nested expressions.
+     *
+     * @param n     - number of variables.
+     * @param ratio - number of expressions per variable.
+     * @param depth - number of gates each literal is wrapped in.
+     * @param seed
+     * @return the expressions, one per entry.
+     */
+    public static ArrayList<String> nested(int n, double ratio, int depth, long seed) {
+        Random random = new Random(seed);
+        int m = (int) Math.round(ratio * n);
+        ArrayList<String> expressions = new ArrayList<>(m);
+        for (int j = 0; j < m; j++) {
+            String e = literal(random, n);
+            for (int d = 0; d < depth; d++) {
+                e = "(" + e + ")" + (random.nextBoolean() ? " ^ " : " v ") + literal(random, n);
+                if (random.nextBoolean()) e = "~(" + e + ")";
+            }
+            expressions.add(e);
+        }
+        return expressions;
+    }
+
+    /**
+     * Prints an instance in the input format of <em>ComputationGraph.main</em>: the number of variables, followed by
+     * one expression per line.
+     *
+     * @param args - ksat n ratio k seed, or nested n ratio depth seed.
+     */
+    public static void main(String[] args) {
+        if (args.length != 5) throw new IllegalArgumentException("Usage: ksat|nested n ratio k|depth seed");
+        int n = Integer.parseInt(args[1]);
+        double ratio = Double.parseDouble(args[2]);
+        int k = Integer.parseInt(args[3]);
+        long seed = Long.parseLong(args[4]);
+        ArrayList<String> expressions;
+        if (args[0].equals("ksat")) expressions = kSat(n, ratio, k, seed);
+        else if (args[0].equals("nested")) expressions = nested(n, ratio, k, seed);
+        else throw new IllegalArgumentException("Unknown instance family " + args[0]);
+
+        StringBuilder out = new StringBuilder().append(n).append('\n');
+        for (String e : expressions) out.append(e).append('\n');
+        System.out.print(out);
+    }
+}
@@ -0,0 +1,306 @@
+/**
+ * Dependencies: (external) javax.tools (the JDK compiler), java.lang.invoke.MethodHandles
+ * (internal) CompiledGraph
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * The {@code KernelCompiler} class specializes the <em>forward</em> and <em>backward</em> sweeps of a
+ * <em>CompiledGraph</em> to its tape. It generates Java code with one statement per node and the tape indices as
+ * constants, so there is no opcode dispatch and no indirection through <em>inStart</em> and <em>in</em>, compiles it in
+ * memory with the compiler of the running JDK and loads it as hidden classes implementing <em>CompiledGraph.Kernel</em>.
+ * The JIT can then register-allocate whole runs of gates, which pays off on instances solved for thousands of steps.
+ * <p>
+ * The generated code performs the same floating-point operations in the same order as the interpreted sweeps, so the
+ * costs and gradients it produces are identical. Gates with more than WIDE inputs keep a loop over <em>in</em>, as
+ * unrolling them would only make the code larger, and keep their prefix products in the <em>prefix</em> buffer of the
+ * copy of the tape being swept, so the kernel allocates nothing and can still be shared by every copy.
+ * <p>
+ * The tape is cut into chunks of about CHUNK nodes plus inputs, each compiled into a forward and a backward method,
+ * which keeps every method well under the size above which HotSpot does not compile it. Consecutive chunks are grouped
+ * into classes of about PART nodes plus inputs, so no class runs out of constant pool entries; the sweeps call the
+ * classes in order (in reverse order for <em>backward</em>).
+ * <p>
+ * Compiling takes time proportional to the size of the tape (javac is far slower than the sweeps), and needs the
+ * <em>jdk.compiler</em> module: on a JRE without it, <em>compile</em> throws an IllegalStateException.
+ *
+ * @author Felipe Nuti
+ */
+public class KernelCompiler {
+    static final int WIDE = 32;
+    static final int CHUNK = 128;
+    static final int PART = 8192;
+
+    /**
+     * Generates, compiles and loads the kernel of <em>graph</em>, which can then be set as its <em>kernel</em>.
+     *
+     * @param graph
+     * @return
+     */
+    static CompiledGraph.Kernel compile(CompiledGraph graph) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) throw new IllegalStateException("No Java compiler available to specialize the circuit");
+
+        List<Source> sources = new ArrayList<>();
+        int lo = 0;
+        while (lo < graph.size || sources.isEmpty()) {
+            int hi = lo, cost = 0;
+            while (hi < graph.size && (hi == lo || cost + cost(graph, hi) <= PART)) cost += cost(graph, hi++);
+            sources.add(new Source("TapeKernel" + sources.size(), generate(graph, "TapeKernel" + sources.size(), lo,
+                    hi)));
+            lo = hi;
+        }
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        Map<String, ByteArrayOutputStream> classes = new HashMap<>();
+        StandardJavaFileManager standard = compiler.getStandardFileManager(diagnostics, null, null);
+        ForwardingJavaFileManager<StandardJavaFileManager> manager = new ForwardingJavaFileManager<>(standard) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String name, JavaFileObject.Kind kind,
+                                                       FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("mem:///" + name + kind.extension), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                        classes.put(name, bytes);
+                        return bytes;
+                    }
+                };
+            }
+        };
+        List<String> options = List.of("-classpath", System.getProperty("java.class.path"), "-g:none", "-proc:none");
+        if (!compiler.getTask(null, manager, diagnostics, options, null, sources).call()) {
+            String message = "Could not compile the circuit";
+            for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()) {
+                if (d.getKind() == Diagnostic.Kind.ERROR) {
+                    message += ": " + d.getMessage(null);
+                    break;
+                }
+            }
+            throw new IllegalStateException(message);
+        }
+
+        CompiledGraph.Kernel[] parts = new CompiledGraph.Kernel[sources.size()];
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            for (int p = 0; p < parts.length; p++) {
+                byte[] bytes = classes.get("TapeKernel" + p).toByteArray();
+                MethodHandles.Lookup hidden = lookup.defineHiddenClass(bytes, true);
+                parts[p] = (CompiledGraph.Kernel) hidden.findConstructor(hidden.lookupClass(),
+                        MethodType.methodType(void.class, int[].class)).invoke(graph.in);
+            }
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not load the compiled circuit", e);
+        }
+        if (parts.length == 1) return parts[0];
+        return new CompiledGraph.Kernel() {
+            @Override
+            public void forward(double[] x, double[] val) {
+                for (CompiledGraph.Kernel part : parts) part.forward(x, val);
+            }
+
+            @Override
+            public void backward(double[] val, double[] grad, double[] out, double[] prefix) {
+                for (int p = parts.length - 1; p >= 0; p--) parts[p].backward(val, grad, out, prefix);
+            }
+        };
+    }
+
+    /**
+     * Size of the code of node i, counted in nodes plus inputs.
+     *
+     * @param graph
+     * @param i
+     * @return
+     */
+    private static int cost(CompiledGraph graph, int i) {
+        int arity = graph.inStart[i + 1] - graph.inStart[i];
+        return 1 + Math.min(arity, WIDE);
+    }
+
+    /**
+     * Generates the source of the class <em>name</em>, which evaluates the nodes from <em>lo</em> to <em>hi</em> - 1.
+     *
+     * @param graph
+     * @param name
+     * @param lo
+     * @param hi
+     * @return
+     */
+    private static String generate(CompiledGraph graph, String name, int lo, int hi) {
+        List<Integer> bounds = new ArrayList<>();
+        bounds.add(lo);
+        for (int i = lo, cost = 0; i < hi; i++) {
+            if (cost > 0 && cost + cost(graph, i) > CHUNK) {
+                bounds.add(i);
+                cost = 0;
+            }
+            cost += cost(graph, i);
+        }
+        bounds.add(hi);
+        int chunks = bounds.size() - 1;
+
+        StringBuilder code = new StringBuilder();
+        code.append("final class ").append(name).append(" implements CompiledGraph.Kernel {\n");
+        code.append("    private final int[] in;\n\n");
+        code.append("    ").append(name).append("(int[] in) {\n        this.in = in;\n    }\n\n");
+        code.append("    public void forward(double[] x, double[] v) {\n");
+        for (int c = 0; c < chunks; c++) code.append("        f").append(c).append("(x, v);\n");
+        code.append("    }\n\n");
+        code.append("    public void backward(double[] v, double[] grad, double[] out, double[] q) {\n");
+        for (int c = chunks - 1; c >= 0; c--) code.append("        b").append(c).append("(v, grad, out, q);\n");
+        code.append("    }\n");
+        for (int c = 0; c < chunks; c++) {
+            code.append("\n    private void f").append(c).append("(double[] x, double[] v) {\n");
+            for (int i = bounds.get(c); i < bounds.get(c + 1); i++) forward(graph, i, code);
+            code.append("    }\n");
+            code.append("\n    private void b").append(c)
+                    .append("(double[] v, double[] grad, double[] out, double[] q) {\n");
+            code.append("        double g;\n");
+            for (int i = bounds.get(c + 1) - 1; i >= bounds.get(c); i--) backward(graph, i, code);
+            code.append("    }\n");
+        }
+        return code.append("}\n").toString();
+    }
+
+    /**
+     * Appends the statement computing the value of node i, as in <em>CompiledGraph.evaluate</em>.
+     *
+     * @param graph
+     * @param i
+     * @param code
+     */
+    private static void forward(CompiledGraph graph, int i, StringBuilder code) {
+        int s = graph.inStart[i], e = graph.inStart[i + 1];
+        int[] in = graph.in;
+        boolean and = graph.op[i] == CompiledGraph.AND;
+        if ((and || graph.op[i] == CompiledGraph.OR) && e - s > WIDE) {
+            code.append("        {\n            double p = 1.0;\n");
+            code.append("            for (int k = ").append(s).append("; k < ").append(e).append("; k++) p *= ")
+                    .append(and ? "v[in[k]]" : "(1 - v[in[k]])").append(";\n");
+            code.append("            v[").append(i).append("] = ").append(and ? "p" : "1 - p").append(";\n        }\n");
+            return;
+        }
+        code.append("        v[").append(i).append("] = ");
+        switch (graph.op[i]) {
+            case CompiledGraph.VAR:
+                code.append("1 / (1 + Math.exp(-x[").append(in[s]).append("]))");
+                break;
+            case CompiledGraph.NOT:
+                code.append("1 - v[").append(in[s]).append(']');
+                break;
+            case CompiledGraph.AND:
+            case CompiledGraph.OR:
+                if (!and) code.append("1 - ");
+                if (e == s) code.append("1.0");
+                for (int k = s; k < e; k++) {
+                    if (k > s) code.append(" * ");
+                    factor(and, in[k], code);
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown opcode " + graph.op[i]);
+        }
+        code.append(";\n");
+    }
+
+    /**
+     * Appends the statements propagating the gradient of node i to its inputs (or, for a VAR node, to its variable),
+     * as in <em>CompiledGraph.backward</em>. Nodes whose gradient is 0 are skipped.
+     *
+     * @param graph
+     * @param i
+     * @param code
+     */
+    private static void backward(CompiledGraph graph, int i, StringBuilder code) {
+        int s = graph.inStart[i], e = graph.inStart[i + 1];
+        int[] in = graph.in;
+        code.append("        if ((g = grad[").append(i).append("]) != 0.0) ");
+        switch (graph.op[i]) {
+            case CompiledGraph.VAR:
+                code.append("out[").append(in[s]).append("] += g * v[").append(i).append("] * (1 - v[").append(i)
+                        .append("]);\n");
+                return;
+            case CompiledGraph.NOT:
+                code.append("grad[").append(in[s]).append("] -= g;\n");
+                return;
+            case CompiledGraph.AND:
+            case CompiledGraph.OR:
+                break;
+            default:
+                throw new IllegalStateException("Unknown opcode " + graph.op[i]);
+        }
+        boolean and = graph.op[i] == CompiledGraph.AND;
+        code.append("{\n");
+        if (e - s > WIDE) {
+            String factor = and ? "v[in[k]]" : "(1 - v[in[k]])";
+            code.append("            double p = 1.0;\n");
+            code.append("            for (int k = ").append(s).append("; k < ").append(e).append("; k++) {\n");
+            code.append("                q[k - ").append(s).append("] = p;\n");
+            code.append("                p *= ").append(factor).append(";\n            }\n");
+            code.append("            double t = g;\n");
+            code.append("            for (int k = ").append(e - 1).append("; k >= ").append(s).append("; k--) {\n");
+            code.append("                grad[in[k]] += q[k - ").append(s).append("] * t;\n");
+            code.append("                t *= ").append(factor).append(";\n            }\n        }\n");
+            return;
+        }
+        // q<k> is the product of the factors of the inputs before the kth, t the gradient times those after it
+        for (int k = s + 1; k < e; k++) {
+            code.append("            double q").append(k - s).append(" = ");
+            if (k > s + 1) code.append('q').append(k - s - 1).append(" * ");
+            factor(and, in[k - 1], code);
+            code.append(";\n");
+        }
+        code.append("            double t = g;\n");
+        for (int k = e - 1; k >= s; k--) {
+            code.append("            grad[").append(in[k]).append("] += ").append(k > s ? "q" + (k - s) : "1.0")
+                    .append(" * t;\n");
+            if (k > s) {
+                code.append("            t *= ");
+                factor(and, in[k], code);
+                code.append(";\n");
+            }
+        }
+        code.append("        }\n");
+    }
+
+    private static void factor(boolean and, int j, StringBuilder code) {
+        if (and) code.append("v[").append(j).append(']');
+        else code.append("(1 - v[").append(j).append("])");
+    }
+
+    /**
+     * Generated source of one class, compiled from memory.
+     */
+    private static class Source extends SimpleJavaFileObject {
+        private final String code;
+
+        Source(String name, String code) {
+            super(URI.create("string:///" + name + Kind.SOURCE.extension), Kind.SOURCE);
+            this.code = code;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return code;
+        }
+    }
+}
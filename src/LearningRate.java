@@ -0,0 +1,90 @@
+/**
+ * The {@code LearningRate} class computes the learning rate used by <em>Solver</em> at each step, following one of the
+ * schedules:
+ * - CONSTANT: always base.
+ * - STEP: base * factor^(step / period), i.e. multiplied by factor every period steps.
+ * - COSINE: decays from base to min along half a cosine wave over period steps, then starts again (warm restarts).
+ * - PLATEAU: starts at base and is multiplied by factor whenever the loss has not improved for patience steps.
+ *
+ * @author Felipe Nuti
+ */
+public class LearningRate {
+    static final int CONSTANT = 0;
+    static final int STEP = 1;
+    static final int COSINE = 2;
+    static final int PLATEAU = 3;
+
+    private final double base;
+    private final int schedule;
+    double factor;
+    int period;
+    double min;
+    int patience;
+
+    private double current;
+    private double best;
+    private int since;
+
+    /**
+     * Initializes a constant learning rate.
+     *
+     * @param base
+     */
+    LearningRate(double base) {
+        this(base, CONSTANT);
+    }
+
+    /**
+     * Initializes a learning rate starting at <em>base</em> and following <em>schedule</em>, with factor = 0.5,
+     * period = 1000, min = 0 and patience = 200 (these can be changed before the first call to <em>rate</em>).
+     *
+     * @param base
+     * @param schedule
+     */
+    LearningRate(double base, int schedule) {
+        if (schedule < CONSTANT || schedule > PLATEAU) throw new IllegalArgumentException("Unknown schedule");
+        this.base = base;
+        this.schedule = schedule;
+        this.factor = 0.5;
+        this.period = 1000;
+        this.min = 0.0;
+        this.patience = 200;
+        reset();
+    }
+
+    /**
+     * Restarts the schedule, i.e. before a new run of the solver.
+     */
+    void reset() {
+        current = base;
+        best = Double.POSITIVE_INFINITY;
+        since = 0;
+    }
+
+    /**
+     * Returns the learning rate of the given step.
+     *
+     * @param step - number of steps taken so far in this run.
+     * @param loss - loss observed at this step (only used by PLATEAU).
+     * @return
+     */
+    double rate(int step, double loss) {
+        switch (schedule) {
+            case STEP:
+                return base * Math.pow(factor, step / period);
+            case COSINE:
+                return min + 0.5 * (base - min) * (1 + Math.cos(Math.PI * (step % period) / period));
+            case PLATEAU:
+                if (loss < best - 1e-4 * Math.abs(best)) {
+                    best = loss;
+                    since = 0;
+                } else if (++since > patience) {
+                    current *= factor;
+                    since = 0;
+                }
+                return current;
+            default:
+                return base;
+        }
+    }
+}
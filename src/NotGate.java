@@ -4,10 +4,14 @@
  * - gradient of output w.r.t to its only input:
  * - grad(a) = -1
  */
+
+import java.util.ArrayList;
+
 public class NotGate implements ComputationNode {
     Double output;
     Double grad;
-    ComputationNode a, child;
+    ComputationNode a;
+    ArrayList<ComputationNode> children;
     Integer id;
 
     /**
@@ -18,18 +22,10 @@ public class NotGate implements ComputationNode {
     NotGate(Integer id) {
         output = null;
         grad = 0.0;
-        child = null;
+        children = new ArrayList<>();
         this.id = id;
     }
 
-    /**
-     * Runs <em>backward</em> on the child node.
-     */
-    private void getBackward() {
-        if (child == null) throw new NullPointerException("Child not defined");
-        child.backward();
-    }
-
     /**
      * Standard <em>ComputationNode</em> methods
      **/
@@ -43,7 +39,6 @@ public class NotGate implements ComputationNode {
     }
 
     public void backward() {
-        this.getBackward();
         a.setGrad(-grad);
     }
 
@@ -53,9 +48,16 @@ public class NotGate implements ComputationNode {
         a.setChild(this);
     }
 
+    public ComputationNode[] inputs() {
+        return new ComputationNode[]{a};
+    }
+
     public void setChild(ComputationNode c) {
-        if (child != null) throw new IllegalArgumentException("Child already defined");
-        child = c;
+        children.add(c);
+    }
+
+    public void removeChild(ComputationNode c) {
+        children.remove(c);
     }
 
     public void setGrad(Double d) {
@@ -65,7 +67,6 @@ public class NotGate implements ComputationNode {
 
     public void resetGrad() {
         grad = 0.0;
-        child.resetGrad();
         output = null;
     }
 
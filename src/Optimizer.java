@@ -0,0 +1,24 @@
+/**
+ * Interface for the update rules used by <em>Solver</em> to move the real-valued inputs of a circuit along the gradient
+ * of its cost. Implementations keep their per-variable state (velocities, moment estimates, etc.) in primitive arrays.
+ */
+public interface Optimizer {
+    /**
+     * Prepares the optimizer for a new run on n variables, clearing any state left by a previous run.
+     *
+     * @param n
+     */
+    public void reset(int n);
+
+    /**
+     * Updates x[vars[0]], ..., x[vars[count - 1]] using the gradients grads[vars[0]], ..., grads[vars[count - 1]]. Other
+     * entries of x are left untouched, so a step after a sampled <em>backward</em> only costs as much as the sample.
+     *
+     * @param x     - real-valued inputs of the circuit.
+     * @param grads - gradients of the cost w.r.t x.
+     * @param vars  - indices of the variables to update.
+     * @param count - number of entries of vars to use.
+     * @param rate  - learning rate of this step.
+     */
+    public void step(double[] x, double[] grads, int[] vars, int count, double rate);
+}
@@ -1,15 +1,21 @@
 /**
- * {@code OrGate} represents an augmented logical OR gate, which takes as inputs Doubles a and b between 0 and 1 and
- * computes:
- * - a v b := a + b - a * b
+ * {@code OrGate} represents an augmented logical OR gate, which takes as inputs Doubles a_1, ..., a_k between 0 and 1
+ * (k >= 2) and computes:
+ * - a_1 v ... v a_k := 1 - (1 - a_1) * ... * (1 - a_k) (for k = 2 this is a + b - a * b)
  * - gradient of output w.r.t to each input:
- * - grad w.r.t a = 1 - b
- * - grad w.r.t b = 1 - a
+ * - grad w.r.t a_j = product of (1 - a_i) over all inputs a_i other than a_j
+ * <p>
+ * The gradients are computed in O(k) with prefix and suffix products, so a whole clause can be held by a single gate
+ * instead of a chain of k - 1 binary gates.
  */
+
+import java.util.ArrayList;
+
 public class OrGate implements ComputationNode {
     private Double output;
     private Double grad;
-    private ComputationNode a, b, child;
+    private ArrayList<ComputationNode> inputs;
+    private ArrayList<ComputationNode> children;
     private Integer id;
 
     /**
@@ -21,49 +27,57 @@ public class OrGate implements ComputationNode {
     OrGate(ComputationNode c, Integer id) {
         output = null;
         grad = 0.0;
-        a = c;
-        a.setChild(this);
-        b = null;
-        child = null;
+        inputs = new ArrayList<>();
+        inputs.add(c);
+        c.setChild(this);
+        children = new ArrayList<>();
         this.id = id;
     }
 
-    /**
-     * Runs <em>backward</em> on the child node.
-     */
-    private void getBackward() {
-        if (child == null) throw new NullPointerException("Child not defined");
-        child.backward();
-    }
-
     /**
      * Standard <em>ComputationNode</em> methods
      **/
 
     public Double forward() {
         if (output == null) {
-            output = a.forward() + b.forward() - a.forward() * b.forward();
+            double product = 1.0;
+            for (ComputationNode c : inputs) product *= 1 - c.forward();
+            output = 1 - product;
         }
 
         return output;
     }
 
     public void backward() {
-        if (b == null) throw new IllegalArgumentException("Backpropagation with undefined inputs");
-        this.getBackward();
-        a.setGrad(grad * (1 - b.forward()));
-        b.setGrad(grad * (1 - a.forward())); // will later call "backward" on a and b
+        int k = inputs.size();
+        if (k < 2) throw new IllegalArgumentException("Backpropagation with undefined inputs");
+        double[] suffix = new double[k + 1];
+        suffix[k] = 1.0;
+        for (int j = k - 1; j >= 0; j--) suffix[j] = suffix[j + 1] * (1 - inputs.get(j).forward());
+
+        double prefix = 1.0;
+        for (int j = 0; j < k; j++) {
+            ComputationNode c = inputs.get(j);
+            c.setGrad(grad * prefix * suffix[j + 1]);
+            prefix *= 1 - c.forward();
+        }
     }
 
     public void addInput(ComputationNode c) {
-        if (b != null) throw new IllegalArgumentException("Both inputs already defined");
-        b = c;
-        b.setChild(this);
+        inputs.add(c);
+        c.setChild(this);
+    }
+
+    public ComputationNode[] inputs() {
+        return inputs.toArray(new ComputationNode[0]);
     }
 
     public void setChild(ComputationNode c) {
-        if (child != null) throw new IllegalArgumentException("Child already defined");
-        child = c;
+        children.add(c);
+    }
+
+    public void removeChild(ComputationNode c) {
+        children.remove(c);
     }
 
     public void setGrad(Double d) {
@@ -73,7 +87,6 @@ public class OrGate implements ComputationNode {
 
     public void resetGrad() {
         grad = 0.0;
-        child.resetGrad();
         output = null;
     }
 
@@ -0,0 +1,117 @@
+/**
+ * Dependencies: (external) java.util.concurrent
+ * (internal) CompiledGraph, Solver
+ */
+
+import java.util.Random;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * The {@code ParallelSolver} class runs several independent restarts of gradient descent on the same circuit, on all
+ * available cores. Restart k starts from a random point drawn from a generator seeded with seed + k, so runs are
+ * reproducible.
+ * <p>
+ * All restarts share the (immutable) tape of the <em>CompiledGraph</em>, each with its own value and gradient buffers.
+ * As soon as one of them finds an assignment that satisfies every expression, the others are told to stop and their
+ * threads are interrupted.
+ * <p>
+ * The solver of each restart is created by a factory from the restart's copy of the graph, so that settings such as
+ * the step size or the mini-batch size can be chosen by the caller.
+ *
+ * @author Felipe Nuti
+ */
+public class ParallelSolver {
+    private final CompiledGraph graph;
+    private final Function<CompiledGraph, Solver> factory;
+    private final int restarts;
+    private final int threads;
+    private final long seed;
+
+    /**
+     * Initializes a <em>ParallelSolver</em> running <em>restarts</em> restarts on at most as many threads as there are
+     * available processors.
+     *
+     * @param graph
+     * @param restarts
+     * @param seed
+     */
+    ParallelSolver(CompiledGraph graph, int restarts, long seed) {
+        this(graph, Solver::new, restarts, seed);
+    }
+
+    /**
+     * Initializes a <em>ParallelSolver</em> whose restarts use solvers created by <em>factory</em>.
+     *
+     * @param graph
+     * @param factory
+     * @param restarts
+     * @param seed
+     */
+    ParallelSolver(CompiledGraph graph, Function<CompiledGraph, Solver> factory, int restarts, long seed) {
+        this(graph, factory, restarts, Math.min(restarts, Runtime.getRuntime().availableProcessors()), seed);
+    }
+
+    ParallelSolver(CompiledGraph graph, Function<CompiledGraph, Solver> factory, int restarts, int threads, long seed) {
+        if (restarts < 1 || threads < 1) throw new IllegalArgumentException("Need at least one restart and thread");
+        this.graph = graph;
+        this.factory = factory;
+        this.restarts = restarts;
+        this.threads = threads;
+        this.seed = seed;
+    }
+
+    /**
+     * Creates the <em>Solver</em> used by one restart. Each call returns a solver with its own copy of the graph buffers.
+     *
+     * @return
+     */
+    Solver newSolver() {
+        return factory.apply(new CompiledGraph(graph));
+    }
+
+    /**
+     * Runs all restarts and returns the first one that satisfied every expression, or, if none did, the one with the
+     * lowest final loss.
+     *
+     * @return the <em>Solver</em> of the winning restart, holding its assignment in <em>x</em>.
+     * @throws InterruptedException
+     */
+    public Solver solve() throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CompletionService<Solver> results = new ExecutorCompletionService<>(pool);
+        AtomicBoolean stop = new AtomicBoolean(false);
+
+        for (int k = 0; k < restarts; k++) {
+            long s = seed + k;
+            results.submit(() -> {
+                Solver solver = newSolver();
+                solver.solve(new Random(s), stop);
+                return solver;
+            });
+        }
+
+        Solver best = null;
+        try {
+            for (int k = 0; k < restarts; k++) {
+                Solver solver = results.take().get();
+                if (solver.solved) {
+                    stop.set(true);
+                    return solver;
+                }
+                if (best == null || solver.loss < best.loss) best = solver;
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Restart failed", e.getCause());
+        } finally {
+            stop.set(true);
+            pool.shutdownNow();
+        }
+        return best;
+    }
+}
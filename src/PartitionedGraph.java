@@ -0,0 +1,187 @@
+/**
+ * Dependencies: (external) java.util.Arrays, java.util.concurrent.ForkJoinPool, java.util.concurrent.RecursiveAction
+ * (internal) CompiledGraph
+ * <p>
+ * Parallel evaluation of a single <em>CompiledGraph</em> on several cores.
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The {@code PartitionedGraph} class splits the expressions of a <em>CompiledGraph</em> into partitions whose costs and
+ * gradients are computed in parallel on a <em>ForkJoinPool</em>, so that a single large instance uses every core even
+ * without restarts.
+ * <p>
+ * The expressions are cut into contiguous ranges holding about the same number of tape nodes. Each partition gets its
+ * own <em>CompiledGraph</em> (see <em>CompiledGraph.subgraph</em>): a sub-tape with only the nodes its expressions
+ * depend on, renumbered, over only the variables they contain. vars[p][k] is the original index of the kth variable
+ * of partition p. Gates shared by expressions of different partitions are copied into each of them, so partitions
+ * never write to the same buffer and need no synchronization while they run.
+ * <p>
+ * <em>forward</em> gathers the variables of each partition, evaluates the partitions in parallel and sums their costs
+ * in partition order, so the result does not depend on scheduling. <em>backward</em> computes the gradients of each
+ * partition into its own buffer, indexed by its local variables, and then adds the buffers into the output.
+ * <p>
+ * Like <em>CompiledGraph</em>, the sub-tapes are never modified, and the copy constructor gives another thread its own
+ * buffers over the same sub-tapes.
+ *
+ * @author Felipe Nuti
+ */
+public class PartitionedGraph {
+    final int n;
+    final int partitions;
+    final int[][] vars;
+    private final CompiledGraph[] parts;
+    private final ForkJoinPool pool;
+
+    private final double[][] xs;
+    private final double[][] outs;
+    private final double[] costs;
+
+    /**
+     * Splits <em>graph</em> into <em>partitions</em> partitions, evaluated on the common <em>ForkJoinPool</em>.
+     *
+     * @param graph
+     * @param partitions
+     */
+    PartitionedGraph(CompiledGraph graph, int partitions) {
+        this(graph, partitions, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Splits <em>graph</em> into at most <em>partitions</em> partitions (no more than it has expressions), evaluated on
+     * <em>pool</em>.
+     *
+     * @param graph
+     * @param partitions
+     * @param pool
+     */
+    PartitionedGraph(CompiledGraph graph, int partitions, ForkJoinPool pool) {
+        if (partitions < 1) throw new IllegalArgumentException("Need at least one partition");
+        graph.buildCones();
+        int m = graph.expressions();
+        this.n = graph.n;
+        this.partitions = Math.max(1, Math.min(partitions, m));
+        this.vars = new int[this.partitions][];
+        this.parts = new CompiledGraph[this.partitions];
+        this.pool = pool;
+
+        long total = graph.coneStart[m];
+        int[] expressions = new int[m];
+        for (int j = 0; j < m; j++) expressions[j] = j;
+        int first = 0;
+        for (int p = 0; p < this.partitions; p++) {
+            int last = first + 1;
+            long target = total * (p + 1) / this.partitions;
+            while (last < m - (this.partitions - p - 1) && graph.coneStart[last] < target) last++;
+            if (p == this.partitions - 1) last = m;
+            parts[p] = graph.subgraph(expressions, first, last);
+            vars[p] = parts[p].vars;
+            first = last;
+        }
+
+        this.xs = new double[this.partitions][];
+        this.outs = new double[this.partitions][];
+        for (int p = 0; p < this.partitions; p++) {
+            xs[p] = new double[vars[p].length];
+            outs[p] = new double[vars[p].length];
+        }
+        this.costs = new double[this.partitions];
+    }
+
+    /**
+     * Initializes a <em>PartitionedGraph</em> which shares the partitions of <em>other</em> but has its own buffers.
+     *
+     * @param other
+     */
+    PartitionedGraph(PartitionedGraph other) {
+        this.n = other.n;
+        this.partitions = other.partitions;
+        this.vars = other.vars;
+        this.pool = other.pool;
+        this.parts = new CompiledGraph[partitions];
+        this.xs = new double[partitions][];
+        this.outs = new double[partitions][];
+        for (int p = 0; p < partitions; p++) {
+            parts[p] = new CompiledGraph(other.parts[p]);
+            xs[p] = new double[vars[p].length];
+            outs[p] = new double[vars[p].length];
+        }
+        this.costs = new double[partitions];
+    }
+
+    /**
+     * Evaluates partitions lo, ..., hi - 1, splitting the range in two until a single partition is left.
+     */
+    private class Sweep extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int lo, hi;
+        private final boolean backward;
+
+        Sweep(int lo, int hi, boolean backward) {
+            this.lo = lo;
+            this.hi = hi;
+            this.backward = backward;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new Sweep(lo, mid, backward), new Sweep(mid, hi, backward));
+            } else if (backward) {
+                parts[lo].backward(outs[lo]);
+            } else {
+                costs[lo] = parts[lo].forward(xs[lo]);
+            }
+        }
+    }
+
+    /**
+     * Computes the cross-entropy cost of the circuit given real-valued inputs <em>x</em>.
+     *
+     * @param x - x[i] is the real value of the $i variable.
+     * @return the cross-entropy loss of the circuit with <em>x</em> as input.
+     */
+    public double forward(double[] x) {
+        for (int p = 0; p < partitions; p++) {
+            int[] v = vars[p];
+            double[] local = xs[p];
+            for (int k = 0; k < v.length; k++) local[k] = x[v[k]];
+        }
+        pool.invoke(new Sweep(0, partitions, false));
+        double cost = 0.0;
+        for (double c : costs) cost += c;
+        return cost;
+    }
+
+    /**
+     * Computes the gradients of the cost of the last <em>forward</em> call with respect to each variable.
+     *
+     * @param out - array of length n which receives the gradients; out[i] = derivative of the cost w.r.t x[i].
+     */
+    public void backward(double[] out) {
+        pool.invoke(new Sweep(0, partitions, true));
+        Arrays.fill(out, 0, n, 0.0);
+        for (int p = 0; p < partitions; p++) {
+            int[] v = vars[p];
+            double[] local = outs[p];
+            for (int k = 0; k < v.length; k++) out[v[k]] += local[k];
+        }
+    }
+
+    /**
+     * Returns the total number of tape nodes of the partitions, i.e. the nodes evaluated by one <em>forward</em> call.
+     * It exceeds the size of the original tape by the number of copies of gates shared across partitions.
+     *
+     * @return
+     */
+    public int size() {
+        int size = 0;
+        for (CompiledGraph part : parts) size += part.size;
+        return size;
+    }
+}
@@ -0,0 +1,333 @@
+/**
+ * Dependencies: (external) java.util.ArrayList, java.util.Arrays
+ * (internal) ComputationGraph, DimacsLoader
+ * Data file: cnfSatBenchmark
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The {@code Preprocessor} class simplifies a formula in conjunctive normal form before a <em>ComputationGraph</em> is
+ * built from it, so that every step of gradient descent has fewer variables and clauses to go through. Literals are
+ * encoded as in <em>ComputationGraph.addClause</em>: 2 * i for $i and 2 * i + 1 for ~$i.
+ * <p>
+ * <em>run</em> repeats the following until nothing changes:
+ * - unit propagation: the literal of a clause with a single unassigned literal is set to true, clauses it satisfies
+ * are removed and its negation is removed from the other clauses. An empty clause means the formula is unsatisfiable.
+ * - pure literal elimination: a variable which only occurs with one sign in the remaining clauses is set so that all of
+ * them are satisfied.
+ * - subsumption: a clause which contains all the literals of another clause is removed, since it is satisfied whenever
+ * the other one is.
+ * <p>
+ * The assigned variables are recorded, and variables which no longer occur in any clause are dropped. <em>build</em>
+ * numbers the remaining variables from 0 in their original order, and <em>restore</em> maps an assignment of the
+ * smaller circuit back to one of all the original variables.
+ *
+ * @author Felipe Nuti
+ */
+public class Preprocessor {
+    private static final int UNASSIGNED = -1;
+
+    final int n;
+    private final ArrayList<int[]> clauses;
+
+    private int[] value;
+    private boolean[] removed;
+    private int[] active;
+    private int[] occStart;
+    private int[] occ;
+    private int[] queue;
+    private int head, tail;
+    private int[] map;
+
+    boolean unsatisfiable;
+    int fixed;
+    int subsumed;
+
+    /**
+     * Initializes an empty formula over n variables.
+     *
+     * @param n
+     */
+    Preprocessor(int n) {
+        this.n = n;
+        this.clauses = new ArrayList<>();
+    }
+
+    /**
+     * Adds the clause made of the first k literals of <em>literals</em>. Repeated literals are merged, and tautological
+     * clauses (containing both $i and ~$i) are left out. An empty clause (k = 0) makes the formula unsatisfiable.
+     *
+     * @param literals
+     * @param k
+     */
+    void addClause(int[] literals, int k) {
+        if (k == 0) {
+            unsatisfiable = true;
+            return;
+        }
+        int[] clause = Arrays.copyOf(literals, k);
+        Arrays.sort(clause);
+        int length = 0;
+        for (int i = 0; i < k; i++) {
+            if ((clause[i] >> 1) >= n) throw new IllegalArgumentException("Variable name out of bounds");
+            if (length > 0 && clause[length - 1] == clause[i]) continue;
+            if (length > 0 && clause[length - 1] == (clause[i] ^ 1)) return;
+            clause[length++] = clause[i];
+        }
+        clauses.add(length == k ? clause : Arrays.copyOf(clause, length));
+    }
+
+    /**
+     * Number of clauses added.
+     *
+     * @return
+     */
+    int clauses() {
+        return clauses.size();
+    }
+
+    /**
+     * Lists, for every literal l, the clauses it occurs in: they are occ[occStart[l]], ..., occ[occStart[l + 1] - 1].
+     */
+    private void buildOccurrences() {
+        occStart = new int[2 * n + 1];
+        for (int[] clause : clauses) for (int l : clause) occStart[l + 1]++;
+        for (int l = 0; l < 2 * n; l++) occStart[l + 1] += occStart[l];
+        occ = new int[occStart[2 * n]];
+        int[] fill = Arrays.copyOf(occStart, 2 * n);
+        for (int c = 0; c < clauses.size(); c++) for (int l : clauses.get(c)) occ[fill[l]++] = c;
+    }
+
+    /**
+     * Is literal l false under the current partial assignment?
+     *
+     * @param l
+     * @return
+     */
+    private boolean isFalse(int l) {
+        return value[l >> 1] == (l & 1);
+    }
+
+    /**
+     * Sets literal l to true and queues it for propagation. Records a conflict if it is already false.
+     *
+     * @param l
+     */
+    private void assign(int l) {
+        int v = l >> 1;
+        if (value[v] != UNASSIGNED) {
+            if (isFalse(l)) unsatisfiable = true;
+            return;
+        }
+        value[v] = 1 - (l & 1);
+        fixed++;
+        queue[tail++] = l;
+    }
+
+    /**
+     * Propagates the queued literals: removes the clauses they satisfy and assigns the last unassigned literal of every
+     * clause they reduce to a unit.
+     */
+    private void propagate() {
+        while (head < tail && !unsatisfiable) {
+            int l = queue[head++];
+            for (int k = occStart[l]; k < occStart[l + 1]; k++) removed[occ[k]] = true;
+            int f = l ^ 1;
+            for (int k = occStart[f]; k < occStart[f + 1]; k++) {
+                int c = occ[k];
+                if (removed[c]) continue;
+                if (--active[c] == 0) {
+                    unsatisfiable = true;
+                    return;
+                }
+                if (active[c] > 1) continue;
+                for (int u : clauses.get(c)) {
+                    if (value[u >> 1] == UNASSIGNED) {
+                        assign(u);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Assigns every pure literal of the remaining clauses and propagates them.
+     *
+     * @return true if a literal was assigned.
+     */
+    private boolean pureLiterals() {
+        int[] count = new int[2 * n];
+        for (int c = 0; c < clauses.size(); c++) {
+            if (removed[c]) continue;
+            for (int l : clauses.get(c)) if (value[l >> 1] == UNASSIGNED) count[l]++;
+        }
+        boolean changed = false;
+        for (int v = 0; v < n; v++) {
+            if (value[v] != UNASSIGNED) continue;
+            int pos = count[2 * v], neg = count[2 * v + 1];
+            if ((pos == 0) == (neg == 0)) continue;
+            assign(pos > 0 ? 2 * v : 2 * v + 1);
+            changed = true;
+        }
+        propagate();
+        return changed;
+    }
+
+    /**
+     * Drops the false literals of the remaining clauses, then removes every clause which contains all the literals of
+     * another one. Candidates are only looked for in the occurrences of the rarest literal of each clause, and a 64-bit
+     * signature of each clause rules out most of them before the sorted literals are compared.
+     *
+     * @return true if a clause was removed.
+     */
+    private boolean subsume() {
+        for (int c = 0; c < clauses.size(); c++) {
+            if (removed[c]) continue;
+            int[] clause = clauses.get(c);
+            if (active[c] == clause.length) continue;
+            int[] reduced = new int[active[c]];
+            int length = 0;
+            for (int l : clause) if (!isFalse(l)) reduced[length++] = l;
+            clauses.set(c, reduced);
+        }
+        buildOccurrences();
+
+        long[] signature = new long[clauses.size()];
+        Integer[] bySize = new Integer[clauses.size()];
+        int count = 0;
+        for (int c = 0; c < clauses.size(); c++) {
+            if (removed[c]) continue;
+            for (int l : clauses.get(c)) signature[c] |= 1L << (l & 63);
+            bySize[count++] = c;
+        }
+        Arrays.sort(bySize, 0, count, (a, b) -> Integer.compare(clauses.get(a).length, clauses.get(b).length));
+
+        boolean changed = false;
+        for (int t = 0; t < count; t++) {
+            int c = bySize[t];
+            if (removed[c]) continue;
+            int[] clause = clauses.get(c);
+            int rarest = clause[0];
+            for (int l : clause) {
+                if (occStart[l + 1] - occStart[l] < occStart[rarest + 1] - occStart[rarest]) rarest = l;
+            }
+            for (int k = occStart[rarest]; k < occStart[rarest + 1]; k++) {
+                int d = occ[k];
+                if (d == c || removed[d] || (signature[c] & ~signature[d]) != 0) continue;
+                if (subset(clause, clauses.get(d))) {
+                    removed[d] = true;
+                    subsumed++;
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Is every literal of the sorted clause a also in the sorted clause b?
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    private static boolean subset(int[] a, int[] b) {
+        if (a.length > b.length) return false;
+        int j = 0;
+        for (int l : a) {
+            while (j < b.length && b[j] < l) j++;
+            if (j == b.length || b[j] != l) return false;
+            j++;
+        }
+        return true;
+    }
+
+    /**
+     * Runs unit propagation, pure literal elimination and subsumption until none of them changes the formula, or until
+     * it is found to be unsatisfiable.
+     */
+    void run() {
+        int m = clauses.size();
+        value = new int[n];
+        Arrays.fill(value, UNASSIGNED);
+        removed = new boolean[m];
+        active = new int[m];
+        queue = new int[n];
+        buildOccurrences();
+        for (int c = 0; c < m; c++) {
+            int[] clause = clauses.get(c);
+            active[c] = clause.length;
+            if (clause.length == 1) assign(clause[0]);
+        }
+        propagate();
+
+        boolean changed = true;
+        while (changed && !unsatisfiable) {
+            changed = pureLiterals();
+            changed |= subsume();
+        }
+    }
+
+    /**
+     * Builds the circuit of the remaining clauses, over the variables which still occur in them. <em>run</em> must have
+     * been called, and must not have found the formula unsatisfiable. As in <em>DimacsLoader</em>, each clause is
+     * normalized as it is added rather than by a <em>Simplifier</em> pass, since a clause is already in negation normal
+     * form.
+     *
+     * @return
+     */
+    ComputationGraph build() {
+        if (value == null) throw new IllegalStateException("Preprocessor has not run");
+        if (unsatisfiable) throw new IllegalStateException("Formula is unsatisfiable");
+        map = new int[n];
+        Arrays.fill(map, -1);
+        int m = 0;
+        for (int c = 0; c < clauses.size(); c++) {
+            if (removed[c]) continue;
+            m++;
+            for (int l : clauses.get(c)) if (!isFalse(l)) map[l >> 1] = 0;
+        }
+        int vars = 0;
+        for (int v = 0; v < n; v++) if (map[v] == 0) map[v] = vars++;
+
+        ComputationGraph cg = new ComputationGraph(vars, m);
+        int[] literals = new int[16];
+        int j = 0;
+        for (int c = 0; c < clauses.size(); c++) {
+            if (removed[c]) continue;
+            int k = 0;
+            for (int l : clauses.get(c)) {
+                if (isFalse(l)) continue;
+                if (k == literals.length) literals = Arrays.copyOf(literals, 2 * k);
+                literals[k++] = 2 * map[l >> 1] + (l & 1);
+            }
+            k = DimacsLoader.normalize(literals, k);
+            if (k > 0) cg.addClause(literals, k, j);
+            j++;
+        }
+        cg.sortNodes();
+        return cg;
+    }
+
+    /**
+     * Maps an assignment <em>x</em> of the circuit returned by <em>build</em> to one of all the original variables.
+     * Variables assigned by the preprocessor get +/- infinity (i.e. a truth value of exactly 1 or 0), and variables which
+     * no longer occurred in any clause, whose value does not matter, get -infinity.
+     *
+     * @param x
+     * @return
+     */
+    double[] restore(double[] x) {
+        if (map == null) throw new IllegalStateException("Circuit has not been built");
+        double[] full = new double[n];
+        for (int v = 0; v < n; v++) {
+            if (value[v] != UNASSIGNED) full[v] = value[v] == 1 ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY;
+            else if (map[v] >= 0) full[v] = x[map[v]];
+            else full[v] = Double.NEGATIVE_INFINITY;
+        }
+        return full;
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * {@code RMSProp} scales each variable's step by a running average of its squared gradients:
+ * - s := decay * s + (1 - decay) * grad^2
+ * - x := x - rate * grad / (sqrt(s) + epsilon)
+ */
+public class RMSProp implements Optimizer {
+    private final double decay;
+    private final double epsilon;
+    private double[] s;
+
+    /**
+     * Initializes RMSProp with the usual coefficients decay = 0.9 and epsilon = 1e-8.
+     */
+    RMSProp() {
+        this(0.9, 1e-8);
+    }
+
+    RMSProp(double decay, double epsilon) {
+        this.decay = decay;
+        this.epsilon = epsilon;
+    }
+
+    public void reset(int n) {
+        s = new double[n];
+    }
+
+    public void step(double[] x, double[] grads, int[] vars, int count, double rate) {
+        for (int t = 0; t < count; t++) {
+            int i = vars[t];
+            double g = grads[i];
+            s[i] = decay * s[i] + (1 - decay) * g * g;
+            x[i] -= rate * g / (Math.sqrt(s[i]) + epsilon);
+        }
+    }
+}
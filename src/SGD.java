@@ -0,0 +1,47 @@
+/**
+ * {@code SGD} implements gradient descent with optional (heavy-ball or Nesterov) momentum:
+ * - velocity := momentum * velocity + grad
+ * - x := x - rate * velocity (heavy ball), or x := x - rate * (grad + momentum * velocity) (Nesterov)
+ * With a momentum of 0 this is the plain update x := x - rate * grad used by <em>ComputationGraph.main</em>.
+ */
+public class SGD implements Optimizer {
+    private final double momentum;
+    private final boolean nesterov;
+    private double[] velocity;
+
+    /**
+     * Initializes plain gradient descent, without momentum.
+     */
+    SGD() {
+        this(0.0, false);
+    }
+
+    /**
+     * Initializes gradient descent with the given momentum coefficient (between 0 and 1).
+     *
+     * @param momentum
+     * @param nesterov - whether to use Nesterov's look-ahead update instead of heavy-ball momentum.
+     */
+    SGD(double momentum, boolean nesterov) {
+        if (momentum < 0 || momentum >= 1) throw new IllegalArgumentException("Momentum must be in [0, 1)");
+        this.momentum = momentum;
+        this.nesterov = nesterov;
+    }
+
+    public void reset(int n) {
+        velocity = momentum == 0.0 ? null : new double[n];
+    }
+
+    public void step(double[] x, double[] grads, int[] vars, int count, double rate) {
+        if (velocity == null) {
+            for (int t = 0; t < count; t++) x[vars[t]] -= rate * grads[vars[t]];
+            return;
+        }
+        for (int t = 0; t < count; t++) {
+            int i = vars[t];
+            double g = grads[i];
+            velocity[i] = momentum * velocity[i] + g;
+            x[i] -= rate * (nesterov ? g + momentum * velocity[i] : velocity[i]);
+        }
+    }
+}
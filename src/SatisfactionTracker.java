@@ -0,0 +1,445 @@
+/**
+ * Dependencies: (internal) CompiledGraph
+ */
+
+import java.util.Arrays;
+
+/**
+ * The {@code SatisfactionTracker} class keeps track of which logical expressions of a <em>CompiledGraph</em> are
+ * satisfied by the Boolean assignment obtained by rounding the real-valued inputs (x[i] > 0, i.e.
+ * sigmoid(x[i]) > 0.5), and updates this incrementally as rounded variables flip.
+ * <p>
+ * Expressions which are clauses (a single literal, or an OR of literals $i / ~$i) keep a count of their true literals.
+ * Any other expression keeps its Boolean value and is re-evaluated over its cone when one of its variables flips. An
+ * occurrence index (compressed rows, one per variable) lists the expressions each variable appears in, so flipping a
+ * variable costs time proportional to its number of occurrences rather than to the size of the formula.
+ * <p>
+ * For local search (see <em>WalkSAT</em>), the tracker also keeps the list of unsatisfied expressions and, for every
+ * variable, its break count: the number of satisfied clauses in which it is the only true literal, i.e. which flipping
+ * it would make false. The only true literal of a clause is found as the XOR of the variables of its true literals,
+ * which assumes its literals are on distinct variables: an OR with a repeated or complementary literal (which
+ * <em>ComputationGraph.simplify</em> would have removed, but clauses loaded from a file or added to a built circuit
+ * are not simplified) is handled as any other expression.
+ * <p>
+ * The graph may change between solves (see <em>CompiledGraph.addRoot</em> and <em>retract</em>): <em>reset</em> first
+ * indexes only the expressions and variables added since the last call, appending their occurrences to the rows of
+ * the index, which grow geometrically, and handles retracted expressions, whose root is now always true, as any other
+ * expression.
+ *
+ * @author Felipe Nuti
+ */
+public class SatisfactionTracker {
+    private final CompiledGraph graph;
+    private int n;
+    private int m;
+    private int retractions;
+
+    private boolean[] general;
+    private int[] occStart;
+    private int[] occEnd;
+    private int[] occLimit;
+    private int[] occ;
+    private int occTop;
+
+    private boolean[] bits;
+    private int[] count;
+    private int[] trueXor;
+    private int[] breaks;
+    private boolean[] inGeneral;
+    private boolean[] value;
+    private int[] candidates;
+    private int[] seen;
+    private int stamp;
+
+    private int[] unsatList;
+    private int[] unsatPos;
+    private int unsatisfied;
+
+    /**
+     * Builds the occurrence index of <em>graph</em>. Builds the cones of the graph if needed.
+     *
+     * @param graph
+     */
+    SatisfactionTracker(CompiledGraph graph) {
+        this.graph = graph;
+        this.n = graph.n;
+        this.m = graph.expressions();
+        this.retractions = graph.retractions;
+        graph.buildCones();
+
+        int width = n;
+        for (int j = 0; j < m; j++) {
+            int root = graph.roots[j];
+            width = Math.max(width, graph.inStart[root + 1] - graph.inStart[root]);
+        }
+        candidates = new int[width];
+        seen = new int[n];
+
+        general = new boolean[m];
+        occStart = new int[n + 1];
+        for (int j = 0; j < m; j++) {
+            int root = graph.roots[j];
+            general[j] = literal(root) < 0 && !isClause(root);
+            int k = literals(j);
+            for (int t = 0; t < k; t++) occStart[candidates[t] >> 1]++;
+        }
+        for (int v = 0, sum = 0; v <= n; v++) {
+            int c = occStart[v];
+            occStart[v] = sum;
+            sum += c;
+        }
+        occ = new int[occStart[n]];
+        int[] fill = Arrays.copyOf(occStart, n);
+        for (int j = 0; j < m; j++) {
+            int k = literals(j);
+            for (int t = 0; t < k; t++) occ[fill[candidates[t] >> 1]++] = (j << 1) | (candidates[t] & 1);
+        }
+        occEnd = Arrays.copyOfRange(occStart, 1, n + 1);
+        occLimit = occEnd.clone();
+        occTop = occStart[n];
+
+        bits = new boolean[n];
+        count = new int[m];
+        trueXor = new int[m];
+        breaks = new int[n];
+        inGeneral = new boolean[n];
+        for (int v = 0; v < n; v++) {
+            for (int k = occStart[v]; k < occEnd[v]; k++) if (general[occ[k] >> 1]) inGeneral[v] = true;
+        }
+        value = new boolean[graph.size];
+        unsatList = new int[m];
+        unsatPos = new int[m];
+    }
+
+    /**
+     * Indexes the expressions and variables added to the graph since the last call, and makes the expressions
+     * retracted since general ones.
+     */
+    private void sync() {
+        if (graph.n > bits.length) {
+            int capacity = Math.max(graph.n, 2 * bits.length);
+            bits = Arrays.copyOf(bits, capacity);
+            breaks = Arrays.copyOf(breaks, capacity);
+            inGeneral = Arrays.copyOf(inGeneral, capacity);
+            seen = Arrays.copyOf(seen, capacity);
+            occStart = Arrays.copyOf(occStart, capacity);
+            occEnd = Arrays.copyOf(occEnd, capacity);
+            occLimit = Arrays.copyOf(occLimit, capacity);
+        }
+        for (; n < graph.n; n++) occStart[n] = occEnd[n] = occLimit[n] = 0;
+        int size = graph.expressions();
+        if (size > general.length) {
+            int capacity = Math.max(size, 2 * general.length);
+            general = Arrays.copyOf(general, capacity);
+            count = Arrays.copyOf(count, capacity);
+            trueXor = Arrays.copyOf(trueXor, capacity);
+            unsatList = Arrays.copyOf(unsatList, capacity);
+            unsatPos = Arrays.copyOf(unsatPos, capacity);
+        }
+        if (graph.size > value.length) value = new boolean[graph.op.length];
+        for (; m < size; m++) index(m);
+        for (; retractions < graph.retractions; retractions++) general[graph.retracted[retractions]] = true;
+    }
+
+    /**
+     * Adds the occurrences of the variables of expression j to the index.
+     *
+     * @param j
+     */
+    private void index(int j) {
+        int root = graph.roots[j];
+        int width = Math.max(n, graph.inStart[root + 1] - graph.inStart[root]);
+        if (width > candidates.length) candidates = new int[Math.max(width, 2 * candidates.length)];
+        general[j] = literal(root) < 0 && !isClause(root);
+        int k = literals(j);
+        for (int t = 0; t < k; t++) {
+            int v = candidates[t] >> 1;
+            if (general[j]) inGeneral[v] = true;
+            if (occEnd[v] == occLimit[v]) {
+                // move the full row to the end, with twice the room; the space it leaves is not reused
+                int length = occEnd[v] - occStart[v], capacity = Math.max(4, 2 * length);
+                if (occTop + capacity > occ.length) {
+                    occ = Arrays.copyOf(occ, Math.max(occTop + capacity, 2 * occ.length));
+                }
+                System.arraycopy(occ, occStart[v], occ, occTop, length);
+                occStart[v] = occTop;
+                occEnd[v] = occTop + length;
+                occLimit[v] = occTop += capacity;
+            }
+            occ[occEnd[v]++] = (j << 1) | (candidates[t] & 1);
+        }
+    }
+
+    /**
+     * Lists in <em>candidates()</em> every literal (2 * i, or 2 * i + 1 if negated) of clause j, or, if expression j is
+     * not a clause, 2 * i for every variable $i it depends on.
+     *
+     * @param j
+     * @return the number of literals listed.
+     */
+    int literals(int j) {
+        int root = graph.roots[j];
+        int count = 0;
+        if (!general[j]) {
+            int lit = literal(root);
+            if (lit >= 0) {
+                candidates[count++] = lit;
+            } else {
+                for (int k = graph.inStart[root]; k < graph.inStart[root + 1]; k++) {
+                    candidates[count++] = literal(graph.in[k]);
+                }
+            }
+            return count;
+        }
+        int[] cone = graph.cone, coneStart = graph.coneStart;
+        stamp++;
+        for (int c = coneStart[j]; c < coneStart[j + 1]; c++) {
+            int i = cone[c];
+            if (graph.op[i] != CompiledGraph.VAR) continue;
+            int v = graph.in[graph.inStart[i]];
+            if (seen[v] != stamp) {
+                seen[v] = stamp;
+                candidates[count++] = v << 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Buffer filled by <em>literals</em>.
+     *
+     * @return
+     */
+    int[] candidates() {
+        return candidates;
+    }
+
+    /**
+     * If tape node i is a literal ($v or ~$v), returns 2 * v (or 2 * v + 1 if negated); returns -1 otherwise.
+     *
+     * @param i
+     * @return
+     */
+    private int literal(int i) {
+        if (graph.op[i] == CompiledGraph.VAR) return graph.in[graph.inStart[i]] << 1;
+        if (graph.op[i] == CompiledGraph.NOT) {
+            int a = graph.in[graph.inStart[i]];
+            if (graph.op[a] == CompiledGraph.VAR) return (graph.in[graph.inStart[a]] << 1) | 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Is tape node i an OR of literals on distinct variables?
+     *
+     * @param i
+     * @return
+     */
+    private boolean isClause(int i) {
+        if (graph.op[i] != CompiledGraph.OR) return false;
+        stamp++;
+        for (int k = graph.inStart[i]; k < graph.inStart[i + 1]; k++) {
+            int lit = literal(graph.in[k]);
+            if (lit < 0 || seen[lit >> 1] == stamp) return false;
+            seen[lit >> 1] = stamp;
+        }
+        return true;
+    }
+
+    /**
+     * Evaluates expression j over its cone under the current rounded assignment.
+     *
+     * @param j
+     * @return
+     */
+    private boolean evaluate(int j) {
+        int[] cone = graph.cone, coneStart = graph.coneStart;
+        byte[] op = graph.op;
+        int[] in = graph.in, inStart = graph.inStart;
+        for (int c = coneStart[j]; c < coneStart[j + 1]; c++) {
+            int i = cone[c];
+            int s = inStart[i], e = inStart[i + 1];
+            switch (op[i]) {
+                case CompiledGraph.VAR:
+                    value[i] = bits[in[s]];
+                    break;
+                case CompiledGraph.NOT:
+                    value[i] = !value[in[s]];
+                    break;
+                case CompiledGraph.AND: {
+                    boolean b = true;
+                    for (int k = s; k < e && b; k++) b = value[in[k]];
+                    value[i] = b;
+                    break;
+                }
+                case CompiledGraph.OR: {
+                    boolean b = false;
+                    for (int k = s; k < e && !b; k++) b = value[in[k]];
+                    value[i] = b;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown opcode " + op[i]);
+            }
+        }
+        return value[graph.roots[j]];
+    }
+
+    /**
+     * Records that expression j became satisfied (or unsatisfied), keeping the list of unsatisfied expressions.
+     *
+     * @param j
+     * @param satisfied
+     */
+    private void mark(int j, boolean satisfied) {
+        if (satisfied) {
+            int last = unsatList[--unsatisfied];
+            unsatList[unsatPos[j]] = last;
+            unsatPos[last] = unsatPos[j];
+        } else {
+            unsatPos[j] = unsatisfied;
+            unsatList[unsatisfied++] = j;
+        }
+    }
+
+    /**
+     * Rounds every variable of <em>x</em> and recounts the satisfied expressions and break counts from scratch, after
+     * catching up with the changes of the graph since the last call.
+     *
+     * @param x
+     * @return the number of unsatisfied expressions.
+     */
+    int reset(double[] x) {
+        sync();
+        for (int v = 0; v < n; v++) bits[v] = x[v] > 0;
+        Arrays.fill(count, 0, m, 0);
+        Arrays.fill(trueXor, 0, m, 0);
+        Arrays.fill(breaks, 0, n, 0);
+        for (int j = 0; j < m; j++) {
+            if (general[j]) count[j] = evaluate(j) ? 1 : 0;
+        }
+        for (int v = 0; v < n; v++) {
+            for (int k = occStart[v]; k < occEnd[v]; k++) {
+                int j = occ[k] >> 1;
+                if (!general[j] && bits[v] != ((occ[k] & 1) == 1)) {
+                    count[j]++;
+                    trueXor[j] ^= v;
+                }
+            }
+        }
+        unsatisfied = 0;
+        for (int j = 0; j < m; j++) {
+            if (count[j] == 0) mark(j, false);
+            else if (count[j] == 1 && !general[j]) breaks[trueXor[j]]++;
+        }
+        return unsatisfied;
+    }
+
+    /**
+     * Rounds every variable of <em>x</em> and flips those whose rounded value changed since the last call.
+     *
+     * @param x
+     * @return the number of unsatisfied expressions.
+     */
+    int update(double[] x) {
+        for (int v = 0; v < n; v++) {
+            if ((x[v] > 0) != bits[v]) flip(v);
+        }
+        return unsatisfied;
+    }
+
+    /**
+     * Flips the rounded value of variable v and updates the expressions it occurs in, and the break counts of the
+     * variables of those clauses.
+     *
+     * @param v
+     */
+    void flip(int v) {
+        boolean bit = !bits[v];
+        bits[v] = bit;
+        for (int k = occStart[v]; k < occEnd[v]; k++) {
+            int j = occ[k] >> 1;
+            if (general[j]) {
+                int now = evaluate(j) ? 1 : 0;
+                if (now != count[j]) mark(j, now == 1);
+                count[j] = now;
+            } else if (bit != ((occ[k] & 1) == 1)) {
+                int before = count[j]++;
+                if (before == 0) {
+                    mark(j, true);
+                    breaks[v]++;
+                } else if (before == 1) {
+                    breaks[trueXor[j]]--;
+                }
+                trueXor[j] ^= v;
+            } else {
+                int before = count[j]--;
+                trueXor[j] ^= v;
+                if (before == 1) {
+                    mark(j, false);
+                    breaks[v]--;
+                } else if (before == 2) {
+                    breaks[trueXor[j]]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of expressions which flipping variable v would make false. Clauses are read from the maintained break
+     * counts; expressions which are not clauses are re-evaluated with v flipped.
+     *
+     * @param v
+     * @return
+     */
+    int breakCount(int v) {
+        int b = breaks[v];
+        if (!inGeneral[v]) return b;
+        bits[v] = !bits[v];
+        for (int k = occStart[v]; k < occEnd[v]; k++) {
+            int j = occ[k] >> 1;
+            if (general[j] && count[j] == 1 && !evaluate(j)) b++;
+        }
+        bits[v] = !bits[v];
+        return b;
+    }
+
+    /**
+     * Returns the kth unsatisfied expression, for 0 <= k < <em>unsatisfied()</em>.
+     *
+     * @param k
+     * @return
+     */
+    int unsatisfiedExpression(int k) {
+        return unsatList[k];
+    }
+
+    /**
+     * Number of expressions which are false under the current rounded assignment.
+     *
+     * @return
+     */
+    int unsatisfied() {
+        return unsatisfied;
+    }
+
+    /**
+     * Is expression j true under the current rounded assignment?
+     *
+     * @param j
+     * @return
+     */
+    boolean satisfied(int j) {
+        return count[j] > 0;
+    }
+
+    /**
+     * Current rounded value of variable v.
+     *
+     * @param v
+     * @return
+     */
+    boolean bit(int v) {
+        return bits[v];
+    }
+}
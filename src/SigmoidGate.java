@@ -39,15 +39,6 @@ public class SigmoidGate implements ComputationNode {
         return 1 / (1 + Math.exp(-x));
     }
 
-    /**
-     * Runs <em>backward</em> on all children nodes.
-     */
-    private void getBackward() {
-        for (ComputationNode c : children) {
-            c.backward();
-        }
-    }
-
     /**
      * Standard <em>ComputationNode</em> methods
      **/
@@ -61,7 +52,6 @@ public class SigmoidGate implements ComputationNode {
     }
 
     public void backward() {
-        this.getBackward();
         a.setGrad(grad * forward() * (1 - forward()));
     }
 
@@ -69,10 +59,18 @@ public class SigmoidGate implements ComputationNode {
         throw new IllegalArgumentException("Input already defined");
     }
 
+    public ComputationNode[] inputs() {
+        return new ComputationNode[]{a};
+    }
+
     public void setChild(ComputationNode c) {
         children.add(c);
     }
 
+    public void removeChild(ComputationNode c) {
+        children.remove(c);
+    }
+
     public void setGrad(Double d) {
         grad += d;
         //System.out.printf("Grad at %d (%c) -> %f\n", this.id(), this.type(), grad);
@@ -80,7 +78,6 @@ public class SigmoidGate implements ComputationNode {
 
     public void resetGrad() {
         grad = 0.0;
-        for (ComputationNode c : children) c.resetGrad();
         output = null;
     }
 
@@ -0,0 +1,276 @@
+/**
+ * Dependencies: (external) java.util.ArrayDeque, java.util.ArrayList, java.util.Arrays, java.util.HashMap,
+ * java.util.IdentityHashMap
+ * (internal) ComputationGraph, ComputationNode, GateKey, NotGate, AndGate, OrGate, CostNode
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * The {@code Simplifier} class rewrites the logical expressions of a <em>ComputationGraph</em> into an equivalent,
+ * smaller circuit. Every expression is brought to negation normal form, and on the way:
+ * - double negations disappear (~~a = a);
+ * - negations are pushed down to the variables with De Morgan's laws (~(a ^ b) = ~a v ~b, ~(a v b) = ~a ^ ~b);
+ * - nested gates of the same type are flattened into a single n-ary gate ((a ^ b) ^ c = a ^ b ^ c);
+ * - repeated inputs of a gate are dropped (a ^ a = a);
+ * - complementary literals are folded into constants ($x v ~$x = true, $x ^ ~$x = false), and constants are
+ * propagated (a ^ true = a, a v true = true, etc.).
+ * <p>
+ * Expressions which simplify to true, such as tautological clauses, are removed from the circuit. Expressions which
+ * simplify to false can never be satisfied; they are replaced by $x ^ ~$x for one of the variables that made them
+ * false, so that they still show up as unsatisfied.
+ * <p>
+ * The rewriting is done on <em>Term</em>s, which are hash-consed so that structurally identical terms are the same
+ * object, and both the plain and the negated term of every node are computed in one pass in topological order. The old
+ * circuit is then detached from its variables and the new one is built from the terms of the expressions, sharing
+ * identical gates as <em>ComputationGraph</em> does while parsing. No recursion is involved, so arbitrarily deep
+ * expressions can be simplified.
+ *
+ * @author Felipe Nuti
+ */
+public class Simplifier {
+    private static final int TRUE = 0;
+    private static final int FALSE = 1;
+    private static final int LIT = 2;
+    private static final int AND = 3;
+    private static final int OR = 4;
+
+    /**
+     * A node of a formula in negation normal form: a constant (with the literal that made it constant), a literal
+     * (2 * i for $i, 2 * i + 1 for ~$i), or an AND or OR of at least two other terms.
+     */
+    private static final class Term {
+        final int kind;
+        final int literal;
+        final Term[] args;
+        final int id;
+
+        Term(int kind, int literal, Term[] args, int id) {
+            this.kind = kind;
+            this.literal = literal;
+            this.args = args;
+            this.id = id;
+        }
+    }
+
+    private final ComputationGraph cg;
+    private final HashMap<GateKey, Term> terms;
+    private final ArrayList<Term> byId;
+    private int[] seen;
+    private int mark;
+
+    /**
+     * Initializes a <em>Simplifier</em> for the circuit <em>cg</em>.
+     *
+     * @param cg
+     */
+    Simplifier(ComputationGraph cg) {
+        this.cg = cg;
+        this.terms = new HashMap<>();
+        this.byId = new ArrayList<>();
+        this.seen = new int[16];
+    }
+
+    /**
+     * Returns the unique term with the given kind, literal and arguments, creating it if needed.
+     *
+     * @param kind
+     * @param literal
+     * @param args
+     * @return
+     */
+    private Term term(int kind, int literal, Term[] args) {
+        int[] ids;
+        if (args.length == 0) {
+            ids = new int[]{literal};
+        } else {
+            ids = new int[args.length];
+            for (int k = 0; k < args.length; k++) ids[k] = args[k].id;
+        }
+        GateKey key = new GateKey(kind, ids);
+        Term t = terms.get(key);
+        if (t == null) {
+            t = new Term(kind, literal, args, byId.size());
+            terms.put(key, t);
+            byId.add(t);
+        }
+        return t;
+    }
+
+    private Term literal(int literal) {
+        return term(LIT, literal, new Term[0]);
+    }
+
+    /**
+     * Returns the simplified AND (or OR) of <em>inputs</em>, which are already simplified.
+     *
+     * @param kind    - AND or OR.
+     * @param inputs
+     * @return
+     */
+    private Term gate(int kind, Term[] inputs) {
+        int absorbing = kind == AND ? FALSE : TRUE;
+        int neutral = kind == AND ? TRUE : FALSE;
+        if (++mark == Integer.MAX_VALUE) {
+            Arrays.fill(seen, 0);
+            mark = 1;
+        }
+
+        ArrayList<Term> args = new ArrayList<>();
+        Term dropped = null;
+        for (Term input : inputs) {
+            Term[] flat = input.kind == kind ? input.args : new Term[]{input};
+            for (Term t : flat) {
+                if (t.kind == absorbing) return t;
+                if (t.kind == neutral) {
+                    if (dropped == null) dropped = t;
+                    continue;
+                }
+                if (t.kind == LIT) {
+                    Term complement = literal(t.literal ^ 1);
+                    if (complement.id < seen.length && seen[complement.id] == mark) {
+                        return term(absorbing, t.literal, new Term[0]);
+                    }
+                }
+                if (t.id >= seen.length) seen = Arrays.copyOf(seen, Math.max(2 * seen.length, byId.size()));
+                if (seen[t.id] == mark) continue;
+                seen[t.id] = mark;
+                args.add(t);
+            }
+        }
+
+        if (args.isEmpty()) return dropped;
+        if (args.size() == 1) return args.get(0);
+        Term[] sorted = args.toArray(new Term[0]);
+        Arrays.sort(sorted, (a, b) -> Integer.compare(a.id, b.id));
+        return term(kind, -1, sorted);
+    }
+
+    /**
+     * Builds the (shared) node computing term <em>t</em>, whose arguments were already built.
+     *
+     * @param t
+     * @param built
+     * @return
+     */
+    private ComputationNode node(Term t, ComputationNode[] built) {
+        if (t.kind == LIT) {
+            ComputationNode sigmoid = cg.inputNodes[t.literal >> 1];
+            if ((t.literal & 1) == 0) return sigmoid;
+            NotGate not = new NotGate(cg.counter++);
+            not.addInput(sigmoid);
+            return cg.share(not);
+        }
+        ComputationNode gate;
+        if (t.kind == AND) gate = new AndGate(built[t.args[0].id], cg.counter++);
+        else gate = new OrGate(built[t.args[0].id], cg.counter++);
+        for (int k = 1; k < t.args.length; k++) gate.addInput(built[t.args[k].id]);
+        return cg.share(gate);
+    }
+
+    /**
+     * Builds the nodes of term <em>root</em> and of all the terms it depends on which were not built yet, in post-order
+     * with an explicit stack.
+     *
+     * @param root
+     * @param built - built[t.id] is the node of term t, or null.
+     * @return
+     */
+    private ComputationNode build(Term root, ComputationNode[] built) {
+        ArrayDeque<Term> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Term t = stack.peek();
+            if (built[t.id] != null) {
+                stack.pop();
+                continue;
+            }
+            boolean ready = true;
+            for (Term u : t.args) {
+                if (built[u.id] == null) {
+                    stack.push(u);
+                    ready = false;
+                }
+            }
+            if (!ready) continue;
+            stack.pop();
+            built[t.id] = node(t, built);
+        }
+        return built[root.id];
+    }
+
+    /**
+     * Simplifies every expression of the circuit, replacing its nodes. <em>sortNodes</em> must be called afterwards.
+     */
+    void run() {
+        ArrayList<ComputationNode> order = cg.topologicalOrder();
+        IdentityHashMap<ComputationNode, Integer> index = new IdentityHashMap<>();
+        for (int i = 0; i < order.size(); i++) index.put(order.get(i), i);
+        Term[] pos = new Term[order.size()];
+        Term[] neg = new Term[order.size()];
+
+        for (int i = 0; i < order.size(); i++) {
+            ComputationNode node = order.get(i);
+            ComputationNode[] inputs = node.inputs();
+            Term[] p = new Term[inputs.length], q = new Term[inputs.length];
+            for (int k = 0; k < inputs.length; k++) {
+                Integer a = index.get(inputs[k]);
+                if (a == null) continue;
+                p[k] = pos[a];
+                q[k] = neg[a];
+            }
+            switch (node.type()) {
+                case 's':
+                    pos[i] = literal(2 * i);
+                    neg[i] = literal(2 * i + 1);
+                    break;
+                case '~':
+                    pos[i] = q[0];
+                    neg[i] = p[0];
+                    break;
+                case '^':
+                    pos[i] = gate(AND, p);
+                    neg[i] = gate(OR, q);
+                    break;
+                case 'v':
+                    pos[i] = gate(OR, p);
+                    neg[i] = gate(AND, q);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Cannot simplify node of type " + node.type());
+            }
+        }
+
+        Term[] roots = new Term[cg.costNode.length];
+        for (int j = 0; j < roots.length; j++) {
+            CostNode c = cg.costNode[j];
+            if (c == null) continue;
+            Term t = pos[index.get(c.inputs()[0])];
+            if (t.kind == FALSE) {
+                int v = t.literal & ~1;
+                t = term(AND, -1, new Term[]{literal(v), literal(v | 1)});
+            }
+            roots[j] = t;
+        }
+
+        for (ComputationNode node : order) {
+            if (node.type() == 's') continue;
+            for (ComputationNode c : node.inputs()) c.removeChild(node);
+        }
+        for (CostNode c : cg.costNode) {
+            if (c != null) c.inputs()[0].removeChild(c);
+        }
+        cg.shared.clear();
+
+        ComputationNode[] built = new ComputationNode[byId.size()];
+        for (int j = 0; j < roots.length; j++) {
+            if (roots[j] == null) continue;
+            if (roots[j].kind == TRUE) cg.costNode[j] = null;
+            else cg.costNode[j] = new CostNode(build(roots[j], built), cg.counter++);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/**
+ * Dependencies: (internal) CompiledGraph, PartitionedGraph, ClauseSampler, Optimizer, SGD, LearningRate,
+ * SatisfactionTracker, WalkSAT, SolverListener, Telemetry
+ * <p>
+ * Gradient descent on the inputs of a <em>CompiledGraph</em>, as in <em>ComputationGraph.main</em>.
+ */
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The {@code Solver} class runs gradient descent on the real-valued inputs of a <em>CompiledGraph</em>, starting from a
+ * random initialization, and stops as soon as the rounded assignment satisfies every logical expression.
+ * <p>
+ * Every <em>checkInterval</em> steps the real-valued inputs are rounded and passed to a <em>SatisfactionTracker</em>,
+ * which only re-examines the expressions containing variables whose rounded value flipped since the last check.
+ * <p>
+ * By default every step follows the gradient of the whole cost (full-batch gradient descent). If <em>batchSize</em> is
+ * positive, each step instead samples that many expressions with a <em>ClauseSampler</em> and follows the gradient of
+ * their cost only, touching just their cones of the circuit (stochastic gradient descent). If <em>partitions</em> is
+ * set, full-batch steps are evaluated by that <em>PartitionedGraph</em> of the circuit, on several cores at once.
+ * <p>
+ * The update rule is given by an <em>Optimizer</em> (plain <em>SGD</em> by default) and the step size by a
+ * <em>LearningRate</em> schedule (constant 0.1 by default).
+ * <p>
+ * If <em>stallSteps</em> is positive, the solver is hybrid: when the loss has not improved for that many steps, the
+ * rounded assignment is handed to <em>WalkSAT</em> for up to <em>maxFlips</em> flips. If local search satisfies every
+ * expression the solver stops; otherwise gradient descent resumes from the assignment it reached, re-softened to
+ * x[i] = +/- <em>soften</em>.
+ * <p>
+ * If <em>start</em> is set, <em>solve</em> warm starts from that assignment (i.e. the one reached by a previous run,
+ * possibly saved in a <em>GraphFile</em>) instead of a random point. Variables beyond its length, i.e. added to the
+ * circuit since, start at 0.
+ * <p>
+ * If a <em>SolverListener</em> is set, it receives a <em>Telemetry</em> sample (loss, gradient norm, satisfied
+ * expressions and throughput) every <em>sampleInterval</em> steps and at the end of the run. Without a listener none of
+ * these are computed.
+ * <p>
+ * A <em>Solver</em> evaluates its circuit in place, so it must not share its <em>CompiledGraph</em> with another
+ * thread; parallel solvers should each get a copy made with the <em>CompiledGraph</em> copy constructor. The outcome of
+ * the last <em>solve</em> call is left in <em>x</em>, <em>solved</em>, <em>steps</em> (the number of steps taken,
+ * i.e. the iterations to solution when <em>solved</em>), <em>unsatisfied</em> and <em>loss</em>.
+ *
+ * @author Felipe Nuti
+ */
+public class Solver {
+    final CompiledGraph graph;
+    Optimizer optimizer;
+    LearningRate learningRate;
+    int maxSteps;
+    int checkInterval;
+    int batchSize;
+    int sampling;
+    int stallSteps;
+    long maxFlips;
+    double soften;
+    WalkSAT walkSAT;
+    SolverListener listener;
+    int sampleInterval;
+    PartitionedGraph partitions;
+    double[] start;
+
+    private SatisfactionTracker tracker;
+    private Telemetry telemetry;
+    private long sampleTime;
+    private long nodes;
+    private long sampleNodes;
+    private int sampleStep;
+
+    double[] x;
+    boolean solved;
+    int steps;
+    int unsatisfied;
+    double loss;
+
+    /**
+     * Initializes a <em>Solver</em> on <em>graph</em> with the same settings as <em>ComputationGraph.main</em>: plain
+     * gradient descent with a step size of 0.1 and at most 4000 steps. The rounded assignment is checked every 100 steps.
+     *
+     * @param graph
+     */
+    Solver(CompiledGraph graph) {
+        this.graph = graph;
+        this.optimizer = new SGD();
+        this.learningRate = new LearningRate(0.1);
+        this.maxSteps = 4000;
+        this.checkInterval = 100;
+        this.batchSize = 0;
+        this.sampling = ClauseSampler.UNIFORM;
+        this.stallSteps = 0;
+        this.maxFlips = 100000;
+        this.soften = 1.0;
+        this.walkSAT = new WalkSAT();
+        this.sampleInterval = 100;
+    }
+
+    /**
+     * Fills in the <em>Telemetry</em> sample of the current step and passes it to the listener.
+     *
+     * @param cost  - cost of the expressions evaluated at this step.
+     * @param grads - gradients of that cost.
+     * @param vars  - variables whose gradient was computed.
+     * @param count - number of entries of vars to use.
+     */
+    private void sample(double cost, double[] grads, int[] vars, int count) {
+        double norm = 0.0;
+        for (int t = 0; t < count; t++) norm += grads[vars[t]] * grads[vars[t]];
+        long now = System.nanoTime();
+        double seconds = Math.max(now - sampleTime, 1) * 1e-9;
+
+        telemetry.step = steps;
+        telemetry.loss = cost;
+        telemetry.gradientNorm = Math.sqrt(norm);
+        telemetry.expressions = graph.expressions() - graph.retractions;
+        telemetry.satisfied = telemetry.expressions - tracker.update(x);
+        telemetry.stepsPerSecond = (steps - sampleStep) / seconds;
+        telemetry.nodesPerSecond = (nodes - sampleNodes) / seconds;
+        listener.sample(telemetry);
+
+        sampleTime = now;
+        sampleStep = steps;
+        sampleNodes = nodes;
+    }
+
+    /**
+     * Runs gradient descent from <em>start</em>, or if it is null from a random starting point drawn from
+     * <em>random</em>. Stops early when the rounded
+     * assignment satisfies every expression, or when <em>stop</em> is set by another thread (it may be null).
+     *
+     * @param random
+     * @param stop
+     * @return the final real-valued assignment.
+     */
+    public double[] solve(Random random, AtomicBoolean stop) {
+        int n = graph.n;
+        double[] grads = new double[n];
+        int[] all = new int[n];
+        x = new double[n];
+        for (int i = 0; i < n; i++) {
+            if (start == null) x[i] = random.nextDouble() * 0.1;
+            else x[i] = i < start.length ? start[i] : 0.0;
+            all[i] = i;
+        }
+        optimizer.reset(n);
+        learningRate.reset();
+
+        ClauseSampler sampler = null;
+        int[] sample = null;
+        if (batchSize > 0 && graph.expressions() > 0) {
+            graph.buildCones();
+            sampler = new ClauseSampler(graph.expressions(), sampling);
+            sample = new int[batchSize];
+            graph.forward(x);
+            sampler.reset(graph);
+        }
+
+        if (tracker == null) tracker = new SatisfactionTracker(graph);
+        unsatisfied = tracker.reset(x);
+
+        if (listener != null) {
+            telemetry = new Telemetry();
+            sampleTime = System.nanoTime();
+            nodes = sampleNodes = 0;
+            sampleStep = 0;
+        }
+
+        double best = Double.POSITIVE_INFINITY;
+        int improved = 0;
+        for (steps = 0; steps < maxSteps && unsatisfied > 0; steps++) {
+            if (steps % checkInterval == 0) {
+                if (stop != null && stop.get()) break;
+                unsatisfied = tracker.update(x);
+                if (unsatisfied == 0) break;
+            }
+            if (stallSteps > 0 && steps - improved >= stallSteps) {
+                tracker.update(x);
+                unsatisfied = walkSAT.search(tracker, random, maxFlips);
+                for (int i = 0; i < n; i++) x[i] = tracker.bit(i) ? soften : -soften;
+                if (unsatisfied == 0) break;
+                optimizer.reset(n);
+                best = Double.POSITIVE_INFINITY;
+                improved = steps;
+            }
+
+            double cost;
+            if (sampler == null) {
+                if (partitions == null) {
+                    cost = graph.forward(x);
+                    graph.backward(grads);
+                } else {
+                    cost = partitions.forward(x);
+                    partitions.backward(grads);
+                }
+                if (listener != null) {
+                    if (steps % sampleInterval == 0) sample(cost, grads, all, n);
+                    nodes += partitions == null ? graph.size : partitions.size();
+                }
+                optimizer.step(x, grads, all, n, learningRate.rate(steps, cost));
+            } else {
+                sampler.sample(random, sample, batchSize);
+                cost = graph.forward(x, sample, batchSize);
+                sampler.update(graph, sample, batchSize);
+                int touched = graph.backward(grads, sample, batchSize);
+                if (listener != null) {
+                    if (steps % sampleInterval == 0) sample(cost, grads, graph.touched(), touched);
+                    for (int t = 0; t < batchSize; t++) {
+                        nodes += graph.coneStart[sample[t] + 1] - graph.coneStart[sample[t]];
+                    }
+                }
+                optimizer.step(x, grads, graph.touched(), touched, learningRate.rate(steps, cost));
+            }
+            if (cost < best - 1e-4 * Math.abs(best)) {
+                best = cost;
+                improved = steps;
+            }
+        }
+        unsatisfied = tracker.update(x);
+        solved = unsatisfied == 0;
+        loss = graph.forward(x);
+        if (listener != null) {
+            graph.backward(grads);
+            telemetry.finished = true;
+            sample(loss, grads, all, n);
+        }
+        return x;
+    }
+}
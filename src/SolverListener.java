@@ -0,0 +1,14 @@
+/**
+ * Interface for the observers of a <em>Solver</em>, which receive a <em>Telemetry</em> sample of its progress every
+ * <em>sampleInterval</em> steps, and once more when the run ends. No sample is computed when a solver has no listener,
+ * so telemetry costs nothing when it is off.
+ */
+public interface SolverListener {
+    /**
+     * Receives a sample of the progress of a solver. The <em>Telemetry</em> object is reused by the solver for its next
+     * sample, so its fields must be copied if they are needed after this call returns.
+     *
+     * @param telemetry
+     */
+    public void sample(Telemetry telemetry);
+}
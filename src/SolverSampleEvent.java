@@ -0,0 +1,67 @@
+/**
+ * Dependencies: (external) jdk.jfr
+ * (internal) SolverListener, Telemetry
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The {@code SolverSampleEvent} class is a JDK Flight Recorder event recording a <em>Telemetry</em> sample of a
+ * <em>Solver</em>, so that runs can be inspected in JDK Mission Control next to GC and JIT activity. Events are only
+ * recorded while a recording with this event enabled is running (i.e. when the JVM is started with
+ * -XX:StartFlightRecording); otherwise <em>LISTENER</em> costs a single check per sample.
+ *
+ * @author Felipe Nuti
+ */
+@Name("StochasticSAT.SolverSample")
+@Label("Solver Sample")
+@Category("Stochastic SAT")
+@Description("Progress of a gradient descent run")
+@StackTrace(false)
+public class SolverSampleEvent extends Event {
+    /**
+     * <em>SolverListener</em> committing an event for every sample.
+     */
+    static final SolverListener LISTENER = t -> {
+        SolverSampleEvent event = new SolverSampleEvent();
+        if (!event.shouldCommit()) return;
+        event.step = t.step;
+        event.loss = t.loss;
+        event.gradientNorm = t.gradientNorm;
+        event.satisfied = t.satisfied;
+        event.expressions = t.expressions;
+        event.stepsPerSecond = t.stepsPerSecond;
+        event.nodesPerSecond = t.nodesPerSecond;
+        event.finished = t.finished;
+        event.commit();
+    };
+
+    @Label("Step")
+    int step;
+
+    @Label("Loss")
+    double loss;
+
+    @Label("Gradient Norm")
+    double gradientNorm;
+
+    @Label("Satisfied Expressions")
+    int satisfied;
+
+    @Label("Expressions")
+    int expressions;
+
+    @Label("Steps per Second")
+    double stepsPerSecond;
+
+    @Label("Nodes per Second")
+    double nodesPerSecond;
+
+    @Label("Finished")
+    boolean finished;
+}
@@ -0,0 +1,607 @@
+/**
+ * Compilation: javac SolverServer.java
+ * Execution: java SolverServer --unix socketFile [options]
+ * java SolverServer --port p [options]
+ * Dependencies: (external) java.nio.channels, java.security.MessageDigest, java.util.concurrent
+ * (internal) ComputationGraph, CompiledGraph, DimacsLoader, Solver, LearningRate, InstanceGenerator, Telemetry
+ * <p>
+ * Long-lived solver process answering requests over a local socket.
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@code SolverServer} class keeps one JVM (and its JIT-compiled solver) running and solves the instances sent to
+ * it over a Unix-domain socket or a loopback TCP port, so that small instances do not pay for starting a JVM, warming
+ * up the JIT and parsing their input on every solve.
+ * <p>
+ * Protocol: a client sends one or more requests on a connection, each answered in order. A request is a header line,
+ * the lines of the instance, and a line "end":
+ * - header: "expressions" or "dimacs", followed by options key=value separated by spaces: steps, seed, lr, optimizer,
+ * hybrid, flips (as the options of <em>ComputationGraph.main</em>) and telemetry=k to receive a sample every k steps.
+ * - instance: for "expressions", the number of variables on the first line and then one expression per line, as read
+ * by <em>ComputationGraph.main</em>; for "dimacs", a DIMACS cnf formula.
+ * The answer is streamed back as lines: "sample ..." for every <em>Telemetry</em> sample, then either "sat steps=t" or
+ * "unsat unsatisfied=u steps=t loss=l" followed by one "$i = p" line per variable, where p is its truth value (as
+ * printed by <em>ComputationGraph.main</em>, at full precision), or "error message" (on a single line, i.e. when the
+ * instance is malformed or longer than the --payload limit); and finally a line "end". A DIMACS formula with u empty
+ * clauses is answered at once "unsat unsatisfied=u steps=0 loss=Infinity", with every p = 0.5.
+ * <p>
+ * A connection can also keep a circuit of its own and change it between solves, which then cost time proportional to
+ * the change rather than to the circuit (see <em>ComputationGraph.compile</em>):
+ * - "session", with an instance in the format of "expressions", makes it the circuit of the connection. Answer:
+ * "ok variables=n expressions=m".
+ * - "grow variables=k", with no instance, adds variables up to $(k-1). Answer: "ok variables=k".
+ * - "add", with one expression per line, adds them to the circuit, numbered in order from the next free index (indices
+ * of retracted expressions are not reused). Answer: "ok first=j count=c". If an expression is malformed, none are
+ * added.
+ * - "retract", with expression indices separated by spaces or lines, removes those expressions, in order, up to the
+ * first invalid index. Answer: "ok".
+ * - "resolve", with the options of "expressions" and no instance, solves the circuit, warm started from the assignment
+ * the previous "resolve" of the connection reached. The answer is that of "expressions".
+ * <p>
+ * Every connection is served by its own virtual thread, which only does I/O. Solving is done by a bounded pool of
+ * <em>workers</em> platform threads, with at most <em>queue</em> requests waiting; further requests are answered "error
+ * busy" at once rather than piling up. Compiled circuits are kept in a cache (up to <em>cache</em> instances, least
+ * recently used first out, keyed by the digest of the instance) together with idle <em>Solver</em>s over their own
+ * copies of the tape, so an instance sent again skips parsing and compilation and reuses the value, gradient and
+ * tracker buffers of a previous solve. Before accepting connections the server solves a few generated instances to warm
+ * up the JIT.
+ *
+ * @author Felipe Nuti
+ */
+public class SolverServer {
+    private static final Object END = new Object();
+
+    private final ThreadPoolExecutor workers;
+    private final int cacheSize;
+    private final int maxPayload;
+    private final LinkedHashMap<String, Pool> cache;
+
+    /**
+     * Compiled circuit of a cached instance and the solvers over it which are not in use.
+     */
+    private static final class Pool {
+        final CompiledGraph tape;
+        final int empty;
+        final ConcurrentLinkedQueue<Solver> idle;
+
+        Pool(CompiledGraph tape, int empty) {
+            this.tape = tape;
+            this.empty = empty;
+            this.idle = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /**
+     * Circuit of a connection, changed by its "grow", "add" and "retract" requests, with the solver of its last
+     * "resolve" request and the assignment it reached.
+     */
+    private static final class Session {
+        ComputationGraph circuit;
+        Solver solver;
+        double[] x;
+    }
+
+    /**
+     * Work of a request, run on a worker, which puts the lines of its answer (or an <em>Outcome</em>) in
+     * <em>messages</em>.
+     */
+    private interface Request {
+        void run(BlockingQueue<Object> messages) throws IOException;
+    }
+
+    /**
+     * Outcome of a request, handed from the worker to the connection thread.
+     */
+    private static final class Outcome {
+        boolean solved;
+        int steps;
+        int unsatisfied;
+        double loss;
+        double[] x;
+    }
+
+    /**
+     * Initializes a server with <em>workers</em> solving threads, at most <em>queue</em> waiting requests, at most
+     * <em>cache</em> cached instances and instances of at most <em>payload</em> characters.
+     *
+     * @param workers
+     * @param queue
+     * @param cache
+     * @param payload
+     */
+    SolverServer(int workers, int queue, int cache, int payload) {
+        if (workers < 1 || queue < 0 || cache < 0 || payload < 1) {
+            throw new IllegalArgumentException("Invalid server settings");
+        }
+        this.workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.SECONDS,
+                queue > 0 ? new ArrayBlockingQueue<>(queue) : new SynchronousQueue<>());
+        this.cacheSize = cache;
+        this.maxPayload = payload;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Solves a few generated instances of growing size, so that the solver is JIT-compiled before the first request.
+     *
+     * @param rounds
+     */
+    void warmUp(int rounds) {
+        for (int r = 0; r < rounds; r++) {
+            ArrayList<String> instance = InstanceGenerator.kSat(50 + 50 * (r % 4), 3.5, 3, r);
+            Solver solver = new Solver(new ComputationGraph(instance, 50 + 50 * (r % 4)).compile());
+            solver.stallSteps = 100;
+            solver.solve(new Random(r), null);
+        }
+    }
+
+    /**
+     * Returns the pool of the instance <em>payload</em>, from the cache if it was seen recently, and otherwise by
+     * building and compiling its circuit.
+     *
+     * @param dimacs
+     * @param payload
+     * @return
+     * @throws IOException
+     */
+    private Pool pool(boolean dimacs, String payload) throws IOException {
+        String key = key(dimacs, payload);
+        synchronized (cache) {
+            Pool pool = cache.get(key);
+            if (pool != null) return pool;
+        }
+
+        ComputationGraph cg;
+        if (dimacs) cg = DimacsLoader.load(ByteBuffer.wrap(payload.getBytes(StandardCharsets.US_ASCII)));
+        else cg = expressions(payload);
+        Pool pool = new Pool(cg.compile(), cg.empty);
+        synchronized (cache) {
+            if (cacheSize > 0) {
+                Pool existing = cache.putIfAbsent(key, pool);
+                if (existing != null) return existing;
+                if (cache.size() > cacheSize) cache.remove(cache.keySet().iterator().next());
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Returns the cache key of an instance: its kind, its length and the SHA-256 digest of its characters, rather than
+     * the instance itself, so the keys of the cache hold a few bytes each however large the instances are.
+     *
+     * @param dimacs
+     * @param payload
+     * @return
+     */
+    private static String key(boolean dimacs, String payload) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] chunk = new byte[8192];
+        for (int i = 0; i < payload.length(); ) {
+            int k = 0;
+            for (; k < chunk.length && i < payload.length(); i++) {
+                char c = payload.charAt(i);
+                chunk[k++] = (byte) (c >> 8);
+                chunk[k++] = (byte) c;
+            }
+            digest.update(chunk, 0, k);
+        }
+        return (dimacs ? "d" : "e") + payload.length() + ":" + HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Builds the circuit of an instance in the format of the "expressions" request: the number of variables on the
+     * first line, then one expression per line.
+     *
+     * @param payload
+     * @return
+     */
+    private static ComputationGraph expressions(String payload) {
+        int line = payload.indexOf('\n');
+        int n = Integer.parseInt((line < 0 ? payload : payload.substring(0, line)).trim());
+        ArrayList<String> expressions = new ArrayList<>();
+        if (line >= 0) {
+            for (String e : payload.substring(line + 1).split("\n")) if (!e.isBlank()) expressions.add(e);
+        }
+        return new ComputationGraph(expressions, n);
+    }
+
+    /**
+     * Solves one request on a worker thread. Telemetry samples, then the <em>Outcome</em>, are put in
+     * <em>messages</em>.
+     *
+     * @param dimacs
+     * @param options
+     * @param payload
+     * @param messages
+     * @throws IOException
+     */
+    private void solve(boolean dimacs, Map<String, String> options, String payload, BlockingQueue<Object> messages)
+            throws IOException {
+        Pool pool = pool(dimacs, payload);
+        if (pool.empty > 0) {
+            Outcome outcome = new Outcome();
+            outcome.unsatisfied = pool.empty;
+            outcome.loss = Double.POSITIVE_INFINITY;
+            outcome.x = new double[pool.tape.n];
+            messages.add(outcome);
+            return;
+        }
+        Solver solver = pool.idle.poll();
+        if (solver == null) solver = new Solver(new CompiledGraph(pool.tape));
+        messages.add(run(solver, options, messages));
+        pool.idle.add(solver);
+    }
+
+    /**
+     * Configures <em>solver</em> with the options of a request and runs it, putting its telemetry samples in
+     * <em>messages</em>.
+     *
+     * @param solver
+     * @param options
+     * @param messages
+     * @return
+     */
+    private static Outcome run(Solver solver, Map<String, String> options, BlockingQueue<Object> messages) {
+        solver.maxSteps = Integer.parseInt(options.getOrDefault("steps", "4000"));
+        solver.optimizer = ComputationGraph.optimizer(options.getOrDefault("optimizer", "sgd"));
+        solver.learningRate = new LearningRate(Double.parseDouble(options.getOrDefault("lr", "0.1")));
+        solver.stallSteps = Integer.parseInt(options.getOrDefault("hybrid", "0"));
+        solver.maxFlips = Long.parseLong(options.getOrDefault("flips", "100000"));
+        solver.listener = null;
+        if (options.containsKey("telemetry")) {
+            solver.sampleInterval = Integer.parseInt(options.get("telemetry"));
+            solver.listener = t -> messages.add("sample " + t);
+        }
+        long seed = options.containsKey("seed") ? Long.parseLong(options.get("seed")) : System.nanoTime();
+
+        solver.solve(new Random(seed), null);
+        solver.listener = null;
+        Outcome outcome = new Outcome();
+        outcome.solved = solver.solved;
+        outcome.steps = solver.steps;
+        outcome.unsatisfied = solver.unsatisfied;
+        outcome.loss = solver.loss;
+        outcome.x = solver.x;
+        return outcome;
+    }
+
+    /**
+     * Answers a "session" request: makes the circuit of <em>payload</em> that of <em>session</em>.
+     *
+     * @param session
+     * @param payload
+     * @param messages
+     */
+    private static void open(Session session, String payload, BlockingQueue<Object> messages) {
+        ComputationGraph circuit = expressions(payload);
+        circuit.compile();
+        session.circuit = circuit;
+        session.solver = null;
+        session.x = null;
+        messages.add("ok variables=" + circuit.n + " expressions=" + circuit.expressions);
+    }
+
+    /**
+     * Answers a "grow" request.
+     *
+     * @param session
+     * @param options
+     * @param messages
+     */
+    private static void grow(Session session, Map<String, String> options, BlockingQueue<Object> messages) {
+        if (!options.containsKey("variables")) throw new IllegalArgumentException("grow needs variables=k");
+        int n = Integer.parseInt(options.get("variables"));
+        session.circuit.grow(n);
+        messages.add("ok variables=" + n);
+    }
+
+    /**
+     * Answers an "add" request. If an expression is malformed, those of the request added before it are retracted.
+     *
+     * @param session
+     * @param payload
+     * @param messages
+     */
+    private static void add(Session session, String payload, BlockingQueue<Object> messages) {
+        ComputationGraph circuit = session.circuit;
+        int first = circuit.expressions, count = 0;
+        try {
+            for (String e : payload.split("\n")) {
+                if (e.isBlank()) continue;
+                circuit.add(e);
+                count++;
+            }
+        } catch (IllegalArgumentException e) {
+            for (int j = first; j < first + count; j++) circuit.retract(j);
+            throw new IllegalArgumentException(e.getMessage() + " of expression " + (count + 1), e);
+        }
+        messages.add("ok first=" + first + " count=" + count);
+    }
+
+    /**
+     * Answers a "retract" request.
+     *
+     * @param session
+     * @param payload
+     * @param messages
+     */
+    private static void retract(Session session, String payload, BlockingQueue<Object> messages) {
+        for (String j : payload.trim().split("\\s+")) {
+            if (!j.isEmpty()) session.circuit.retract(Integer.parseInt(j));
+        }
+        messages.add("ok");
+    }
+
+    /**
+     * Answers a "resolve" request: solves the circuit of <em>session</em>, with its current tape, warm started from the
+     * assignment of the previous one. The solver is kept as long as the tape is, so it reuses its buffers and its
+     * <em>SatisfactionTracker</em>, which only indexes the expressions added since.
+     *
+     * @param session
+     * @param options
+     * @param messages
+     */
+    private static void resolve(Session session, Map<String, String> options, BlockingQueue<Object> messages) {
+        CompiledGraph tape = session.circuit.compile();
+        if (session.solver == null || session.solver.graph != tape) session.solver = new Solver(tape);
+        session.solver.start = session.x;
+        Outcome outcome = run(session.solver, options, messages);
+        session.x = outcome.x;
+        messages.add(outcome);
+    }
+
+    /**
+     * Answers the requests of one connection until the client closes it.
+     *
+     * @param channel
+     */
+    private void serve(SocketChannel channel) {
+        try (channel;
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.US_ASCII));
+             Writer out = new BufferedWriter(
+                     new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.US_ASCII))) {
+            StringBuilder header = new StringBuilder(), line = new StringBuilder(), payload = new StringBuilder();
+            Session session = new Session();
+            while (readLine(in, header)) {
+                if (header.toString().isBlank()) continue;
+                String[] words = header.toString().trim().split("\\s+");
+                Map<String, String> options = new LinkedHashMap<>();
+                for (int k = 1; k < words.length; k++) {
+                    int eq = words[k].indexOf('=');
+                    if (eq > 0) options.put(words[k].substring(0, eq), words[k].substring(eq + 1));
+                }
+                payload.setLength(0);
+                boolean tooLarge = false;
+                while (readLine(in, line) && !"end".contentEquals(line)) {
+                    if (payload.length() + line.length() >= maxPayload) tooLarge = true;
+                    else payload.append(line).append('\n');
+                }
+
+                String text = payload.toString();
+                boolean open = session.circuit != null;
+                if (tooLarge) {
+                    out.write("error instance larger than " + maxPayload + " characters\nend\n");
+                } else if (words[0].equals("expressions") || words[0].equals("dimacs")) {
+                    answer(messages -> solve(words[0].equals("dimacs"), options, text, messages), out);
+                } else if (words[0].equals("session")) {
+                    answer(messages -> open(session, text, messages), out);
+                } else if (!words[0].equals("grow") && !words[0].equals("add") && !words[0].equals("retract")
+                        && !words[0].equals("resolve")) {
+                    out.write("error unknown request " + words[0] + "\nend\n");
+                } else if (!open) {
+                    out.write("error no session\nend\n");
+                } else if (words[0].equals("grow")) {
+                    answer(messages -> grow(session, options, messages), out);
+                } else if (words[0].equals("add")) {
+                    answer(messages -> add(session, text, messages), out);
+                } else if (words[0].equals("retract")) {
+                    answer(messages -> retract(session, text, messages), out);
+                } else {
+                    answer(messages -> resolve(session, options, messages), out);
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the client went away; nothing left to answer
+        }
+    }
+
+    /**
+     * Reads the next line of <em>in</em> into <em>line</em>, without its terminator. At most <em>maxPayload</em>
+     * characters of the line are kept; the rest is skipped, so a client cannot make the server buffer an unbounded
+     * line.
+     *
+     * @param in
+     * @param line
+     * @return false if the stream ended before the line started.
+     * @throws IOException
+     */
+    private boolean readLine(Reader in, StringBuilder line) throws IOException {
+        line.setLength(0);
+        int c = in.read();
+        if (c == -1) return false;
+        for (; c != -1 && c != '\n'; c = in.read()) {
+            if (c != '\r' && line.length() < maxPayload) line.append((char) c);
+        }
+        return true;
+    }
+
+    /**
+     * Text of the "error" line answering <em>e</em>: its message on a single line, or its class if it has none.
+     *
+     * @param e
+     * @return
+     */
+    private static String error(Exception e) {
+        String message = e.getMessage();
+        if (message == null || message.isBlank()) return e.getClass().getSimpleName();
+        return message.replaceAll("\\s+", " ").trim();
+    }
+
+    /**
+     * Submits a request to the workers and writes its answer as the messages arrive. The messages of the request are
+     * followed by the exception it threw, if any, and then by END.
+     *
+     * @param request
+     * @param out
+     * @throws IOException
+     */
+    private void answer(Request request, Writer out) throws IOException {
+        BlockingQueue<Object> messages = new LinkedBlockingQueue<>();
+        try {
+            workers.execute(() -> {
+                try {
+                    request.run(messages);
+                } catch (RuntimeException | IOException e) {
+                    messages.add(e);
+                } finally {
+                    messages.add(END);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            out.write("error busy\nend\n");
+            return;
+        }
+
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            Object message;
+            try {
+                message = messages.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (message == END) break;
+            if (message instanceof String) {
+                out.write((String) message);
+                out.write('\n');
+                out.flush();
+            } else if (message instanceof Exception) {
+                out.write("error " + error((Exception) message) + "\n");
+            } else {
+                Outcome outcome = (Outcome) message;
+                if (outcome.solved) out.write("sat steps=" + outcome.steps + "\n");
+                else out.write("unsat unsatisfied=" + outcome.unsatisfied + " steps=" + outcome.steps + " loss="
+                        + outcome.loss + "\n");
+                for (int i = 0; i < outcome.x.length; i++) {
+                    line.setLength(0);
+                    line.append('$').append(i).append(" = ").append(1 / (1 + Math.exp(-outcome.x[i]))).append('\n');
+                    out.append(line);
+                }
+            }
+        }
+        out.write("end\n");
+    }
+
+    /**
+     * Accepts connections on <em>server</em> forever, serving each on a new virtual thread.
+     *
+     * @param server
+     * @throws IOException
+     */
+    void run(ServerSocketChannel server) throws IOException {
+        try (ExecutorService connections = Executors.newVirtualThreadPerTaskExecutor()) {
+            while (true) {
+                SocketChannel channel = server.accept();
+                connections.execute(() -> serve(channel));
+            }
+        }
+    }
+
+    /**
+     * Starts a server. Options:
+     * - --unix file: listen on a Unix-domain socket at this path (replacing any file there).
+     * - --port p: listen on port p of the loopback interface instead.
+     * - --workers k: number of solving threads (the number of available processors by default).
+     * - --queue q: number of requests which can wait for a worker (4 per worker by default).
+     * - --cache c: number of instances whose circuits are cached (64 by default).
+     * - --warmup r: number of generated instances solved before accepting connections (20 by default).
+     * - --payload c: maximum size in characters of an instance (64M by default); larger ones are answered "error".
+     *
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        String unix = null;
+        int port = -1;
+        int workers = Runtime.getRuntime().availableProcessors();
+        int queue = -1, cache = 64, warmup = 20, payload = 1 << 26;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--unix")) unix = args[++i];
+            else if (args[i].equals("--port")) port = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--workers")) workers = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--queue")) queue = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--cache")) cache = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--warmup")) warmup = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--payload")) payload = Integer.parseInt(args[++i]);
+            else throw new IllegalArgumentException("Unknown option " + args[i]);
+        }
+        if ((unix == null) == (port < 0)) throw new IllegalArgumentException("Give exactly one of --unix and --port");
+
+        SolverServer solverServer = new SolverServer(workers, queue < 0 ? 4 * workers : queue, cache, payload);
+        solverServer.warmUp(warmup);
+
+        ServerSocketChannel server;
+        if (unix != null) {
+            Path path = Paths.get(unix);
+            Files.deleteIfExists(path);
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            server.bind(UnixDomainSocketAddress.of(path));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    // the socket file is left behind
+                }
+            }));
+        } else {
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        }
+        System.out.println("Listening on " + server.getLocalAddress());
+        solverServer.run(server);
+    }
+}
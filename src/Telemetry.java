@@ -0,0 +1,34 @@
+/**
+ * The {@code Telemetry} class holds a sample of the progress of a <em>Solver</em>, as passed to a
+ * <em>SolverListener</em>:
+ * - step: number of steps taken so far.
+ * - loss: cost of the expressions evaluated at this step (the sampled ones if the solver uses mini-batches).
+ * - gradientNorm: L2 norm of the gradient of that cost w.r.t the variables.
+ * - satisfied: number of expressions satisfied by the rounded assignment, out of <em>expressions</em>.
+ * - stepsPerSecond and nodesPerSecond: throughput since the previous sample, where a node is counted every time
+ * <em>forward</em> evaluates it.
+ * - finished: whether this is the last sample of the run.
+ *
+ * @author Felipe Nuti
+ */
+public class Telemetry {
+    int step;
+    double loss;
+    double gradientNorm;
+    int satisfied;
+    int expressions;
+    double stepsPerSecond;
+    double nodesPerSecond;
+    boolean finished;
+
+    /**
+     * Formats the sample on one line, as printed by the --telemetry option of <em>ComputationGraph.main</em>.
+     *
+     * @return
+     */
+    public String toString() {
+        return String.format("step %d: loss %f, gradient norm %f, %d/%d satisfied, %.0f steps/s, %.3g nodes/s%s",
+                step, loss, gradientNorm, satisfied, expressions, stepsPerSecond, nodesPerSecond,
+                finished ? " (finished)" : "");
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Dependencies: (internal) SatisfactionTracker
+ */
+
+import java.util.Random;
+
+/**
+ * The {@code WalkSAT} class implements WalkSAT local search on the rounded assignment held by a
+ * <em>SatisfactionTracker</em>. At every flip it picks a random unsatisfied expression and, among its variables:
+ * - flips one with a break count of 0 if there is one (a "freebie" which cannot make anything false);
+ * - otherwise, with probability <em>noise</em>, flips a random one;
+ * - otherwise flips one with the smallest break count (ties are broken at random).
+ * Break counts are maintained incrementally by the tracker, so a flip costs time proportional to the occurrences of the
+ * variables involved.
+ *
+ * @author Felipe Nuti
+ */
+public class WalkSAT {
+    double noise;
+
+    /**
+     * Initializes WalkSAT with a noise of 0.567, which works well on random 3-SAT.
+     */
+    WalkSAT() {
+        this.noise = 0.567;
+    }
+
+    /**
+     * Flips variables of <em>tracker</em> until every expression is satisfied or <em>maxFlips</em> flips were made.
+     *
+     * @param tracker
+     * @param random
+     * @param maxFlips
+     * @return the number of expressions left unsatisfied.
+     */
+    int search(SatisfactionTracker tracker, Random random, long maxFlips) {
+        int[] candidates = tracker.candidates();
+        for (long f = 0; f < maxFlips && tracker.unsatisfied() > 0; f++) {
+            int j = tracker.unsatisfiedExpression(random.nextInt(tracker.unsatisfied()));
+            int k = tracker.literals(j);
+            if (k == 0) break;
+
+            int best = -1, bestBreak = Integer.MAX_VALUE, ties = 0;
+            for (int t = 0; t < k; t++) {
+                int v = candidates[t] >> 1;
+                int b = tracker.breakCount(v);
+                if (b < bestBreak) {
+                    best = v;
+                    bestBreak = b;
+                    ties = 1;
+                } else if (b == bestBreak && random.nextInt(++ties) == 0) {
+                    best = v;
+                }
+            }
+            if (bestBreak > 0 && random.nextDouble() < noise) best = candidates[random.nextInt(k)] >> 1;
+            tracker.flip(best);
+        }
+        return tracker.unsatisfied();
+    }
+}